@@ -0,0 +1,57 @@
+package pauseMod;
+
+import arc.Core;
+import arc.Settings;
+import arc.struct.LongSeq;
+
+import java.util.Random;
+
+/**
+ * Synthetic stand-ins for what the mod normally reads from a running game, so the benchmarks run headless:
+ * plan queues instead of units, and block cost and size tables instead of loaded content.
+ */
+public class BenchData {
+    public static final int blocks = 300, items = 22;
+
+    /** A queue of {@code count} plans laid out in rows, like a dragged build. */
+    public static LongSeq plans(int count, int seed) {
+        Random random = new Random(seed);
+        LongSeq plans = new LongSeq(count);
+        int originX = random.nextInt(200), originY = random.nextInt(200);
+        for (int i = 0; i < count; i++) {
+            plans.add(PlanCodec.pack(originX + i % 100, originY + i / 100, i % 4, random.nextInt(blocks), i % 10 == 0));
+        }
+        return plans;
+    }
+
+    /** Item ids and amounts per block id, interleaved, as {@link RequirementTracker#fromContent()} builds them. */
+    public static int[][] blockCosts() {
+        Random random = new Random(1);
+        int[][] costs = new int[blocks][];
+        for (int i = 0; i < blocks; i++) {
+            int[] cost = new int[(1 + random.nextInt(4)) * 2];
+            for (int j = 0; j < cost.length; j += 2) {
+                cost[j] = random.nextInt(items);
+                cost[j + 1] = 1 + random.nextInt(200);
+            }
+            costs[i] = cost;
+        }
+        return costs;
+    }
+
+    /** Size in tiles per block id, as {@link PlanIndex#fromContent()} builds them. */
+    public static int[] blockSizes() {
+        Random random = new Random(2);
+        int[] sizes = new int[blocks];
+        for (int i = 0; i < blocks; i++) sizes[i] = 1 + random.nextInt(4);
+        return sizes;
+    }
+
+    /** Installs in-memory settings, which the relay reads its interval and budget from. */
+    public static void settings() {
+        if (Core.settings == null) Core.settings = new Settings();
+        // Measure the relay itself rather than its rate limit
+        Core.settings.put("multiplayerpause-planbudget", 64 * 1024);
+        Core.settings.put("multiplayerpause-planinbound", 1024 * 1024);
+    }
+}
@@ -0,0 +1,99 @@
+package pauseMod;
+
+import arc.func.Cons;
+import arc.struct.IntSeq;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** {@link NetBridge} that hands everything sent to a blackhole. */
+public class BenchNet implements NetBridge {
+    private final int clients;
+    private final Blackhole blackhole;
+
+    public BenchNet(int clients, Blackhole blackhole) {
+        this.clients = clients;
+        this.blackhole = blackhole;
+    }
+
+    @Override
+    public void onServer(String type, ServerHandler<String> handler) {
+    }
+
+    @Override
+    public void onServerBinary(String type, ServerHandler<byte[]> handler) {
+    }
+
+    @Override
+    public void onClient(String type, Cons<String> handler) {
+    }
+
+    @Override
+    public void onClientBinary(String type, Cons<byte[]> handler) {
+    }
+
+    @Override
+    public void sendServer(String type, String data) {
+        blackhole.consume(data);
+    }
+
+    @Override
+    public void sendServer(String type, byte[] data) {
+        blackhole.consume(data);
+    }
+
+    @Override
+    public void send(int player, String type, String data) {
+        blackhole.consume(data);
+    }
+
+    @Override
+    public void send(int player, String type, byte[] data) {
+        blackhole.consume(data);
+    }
+
+    @Override
+    public void sendServerUnreliable(String type, byte[] data) {
+        blackhole.consume(data);
+    }
+
+    @Override
+    public void sendUnreliable(int player, String type, byte[] data) {
+        blackhole.consume(data);
+    }
+
+    @Override
+    public void broadcast(String type, String data) {
+        blackhole.consume(data);
+    }
+
+    @Override
+    public void broadcast(String type, byte[] data) {
+        blackhole.consume(data);
+    }
+
+    @Override
+    public int localPlayer() {
+        return -1;
+    }
+
+    @Override
+    public int clients() {
+        return clients;
+    }
+
+    /** Players 0 to clients - 1, all on one team. */
+    @Override
+    public void players(IntSeq out) {
+        out.clear();
+        for (int i = 0; i < clients; i++) out.add(i);
+    }
+
+    @Override
+    public int team(int player) {
+        return 0;
+    }
+
+    @Override
+    public long millis() {
+        return System.currentTimeMillis();
+    }
+}
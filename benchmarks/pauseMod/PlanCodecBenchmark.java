@@ -0,0 +1,82 @@
+package pauseMod;
+
+import arc.struct.LongSeq;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of a player's queue, which replaced building and parsing a CSV string per frame.
+ *
+ * Queues are cut to what fits in one keyframe like {@link PlanSync#updateLocal} does, so the 10,000 plan case
+ * measures what the client actually syncs for a queue that long.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlanCodecBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int plans;
+
+    private final PlanBuffer out = new PlanBuffer();
+    private final PlanBuffer in = new PlanBuffer(0);
+    private final PlanState keyframeState = new PlanState(), deltaState = new PlanState();
+    private LongSeq base, appended;
+    private byte[] keyframe, append, remove;
+
+    @Setup
+    public void setup() {
+        base = BenchData.plans(Math.min(plans, PlanCodec.MAX_PLANS), 1);
+        out.reset();
+        base.size = PlanCodec.writeKeyframe(out, 1, base, PlanChunks.MAX_TRANSFER);
+        keyframe = out.toBytes();
+
+        appended = new LongSeq(base.size + 1);
+        for (int i = 0; i < base.size; i++) appended.add(base.items[i]);
+        appended.add(PlanCodec.pack(500, 500, 0, 1, false));
+
+        out.reset();
+        PlanCodec.writeDelta(out, 1, 2, base, appended);
+        append = out.toBytes();
+        out.reset();
+        PlanCodec.writeDelta(out, 2, 3, appended, base);
+        remove = out.toBytes();
+
+        deltaState.set(base, base.size, 1);
+    }
+
+    @Benchmark
+    public int encodeKeyframe() {
+        out.reset();
+        return PlanCodec.writeKeyframe(out, 1, base, PlanChunks.MAX_TRANSFER);
+    }
+
+    /** Placing one more plan at the end of the queue. */
+    @Benchmark
+    public int encodeDelta() {
+        out.reset();
+        PlanCodec.writeDelta(out, 1, 2, base, appended);
+        return out.position;
+    }
+
+    @Benchmark
+    public int decodeKeyframe() {
+        return PlanCodec.apply(in.wrap(keyframe), keyframeState);
+    }
+
+    /** Applies the append delta and the delta that undoes it, so the state is the same after every call. */
+    @Benchmark
+    public int decodeDelta() {
+        deltaState.version = 1;
+        return PlanCodec.apply(in.wrap(append), deltaState) + PlanCodec.apply(in.wrap(remove), deltaState);
+    }
+
+    /** The check every tracked change goes through before anything is encoded. */
+    @Benchmark
+    public boolean compare() {
+        return deltaState.matches(appended);
+    }
+}
@@ -0,0 +1,80 @@
+package pauseMod;
+
+import arc.struct.IntSeq;
+import arc.struct.LongSeq;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** The remote plan preview: re-indexing a changed player, applying one edit and querying a screen-sized rectangle. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlanIndexBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int plans;
+
+    @Param({"1", "8", "32"})
+    public int players;
+
+    private PlanIndex index;
+    private LongSeq[] queues;
+    private PlanIndex.Visitor visitor;
+    private int visited;
+    private final IntSeq keys = new IntSeq();
+    private LongSeq edited;
+    private boolean added;
+
+    @Setup
+    public void setup() {
+        index = new PlanIndex(BenchData.blockSizes());
+        queues = new LongSeq[players];
+        for (int i = 0; i < players; i++) {
+            queues[i] = BenchData.plans(plans, i);
+            index.update(i, queues[i]);
+        }
+        visitor = (owner, plan) -> visited++;
+        edited = new LongSeq(queues[0].size + 1);
+        edited.addAll(queues[0].items, 0, queues[0].size);
+        edited.add(PlanCodec.pack(500, 500, 0, 1, false));
+    }
+
+    /** Re-indexing a player's whole queue, as when there are no plans shown for them to compare with. */
+    @Benchmark
+    public void update() {
+        index.update(0, queues[0]);
+    }
+
+    /** A player placing or removing one plan at the end of their queue. */
+    @Benchmark
+    public void edit() {
+        added = !added;
+        if (added) {
+            index.update(0, queues[0], edited);
+        } else {
+            index.update(0, edited, queues[0]);
+        }
+    }
+
+    /** About what a 1080p screen shows at the default zoom. */
+    @Benchmark
+    public int query() {
+        visited = 0;
+        index.query(100, 100, 160, 134, visitor);
+        return visited;
+    }
+
+    /** What the cached renderer does each frame instead of {@link #query}: find the visible chunks and check their hashes. */
+    @Benchmark
+    public long chunks() {
+        index.chunks(100, 100, 160, 134, keys);
+        long hash = 0;
+        for (int i = 0; i < keys.size; i++) {
+            hash ^= index.hash(keys.items[i]);
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,57 @@
+package pauseMod;
+
+import arc.struct.LongSeq;
+import arc.struct.Queue;
+import mindustry.entities.units.BuildPlan;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the queue shown on another player's unit for an update, from recycled plans ({@link PlanPool}) and from
+ * scratch like before it. Compare {@code gc.alloc.rate.norm} between the two.
+ *
+ * The plans are all removals, since blocks can't be looked up without loaded content; apart from that lookup,
+ * placing a block costs the same.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlanPoolBenchmark {
+    @Param({"10", "1000"})
+    public int plans;
+
+    private final PlanPool pool = new PlanPool();
+    private LongSeq packed;
+
+    @Setup
+    public void setup() {
+        packed = new LongSeq(plans);
+        for (int i = 0; i < plans; i++) packed.add(PlanCodec.pack(i % 100, i / 100, 0, -1, true));
+    }
+
+    /** A queue is shown, replaced by the next update and taken back once out of quarantine. */
+    @Benchmark
+    public int pooled() {
+        Queue<BuildPlan> queue = pool.obtain(packed);
+        int size = queue.size;
+        pool.retire(queue);
+        for (int i = 0; i < PlanPool.quarantineFrames; i++) pool.update();
+        return size;
+    }
+
+    @Benchmark
+    public int unpooled() {
+        Queue<BuildPlan> queue = new Queue<>(Math.max(packed.size, 1));
+        for (int i = 0; i < packed.size; i++) {
+            long plan = packed.items[i];
+            BuildPlan result = new BuildPlan(PlanCodec.x(plan), PlanCodec.y(plan), PlanCodec.rotation(plan), null);
+            result.breaking = PlanCodec.breaking(plan);
+            queue.add(result);
+        }
+        return queue.size;
+    }
+}
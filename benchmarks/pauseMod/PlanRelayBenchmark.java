@@ -0,0 +1,74 @@
+package pauseMod;
+
+import arc.struct.LongSeq;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The server path of plan sync: every player changes their queue, the client encodes the delta, the relay
+ * applies it and flushes one batch. Broadcasts go to a blackhole instead of the network.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlanRelayBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int plans;
+
+    @Param({"1", "8", "32"})
+    public int players;
+
+    private final PlanBuffer out = new PlanBuffer();
+    private PlanRelay relay;
+    private PlanState[] sent;
+    private LongSeq[] queues;
+    private long extra;
+    private boolean added;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        BenchData.settings();
+        relay = new PlanRelay(new BenchNet(players, blackhole));
+
+        sent = new PlanState[players];
+        queues = new LongSeq[players];
+        extra = PlanCodec.pack(500, 500, 0, 1, false);
+        for (int i = 0; i < players; i++) {
+            sent[i] = new PlanState();
+            // Like PlanSync.updateLocal, only what fits in one transfer is synced
+            out.reset();
+            LongSeq queue = BenchData.plans(Math.min(plans, PlanCodec.MAX_PLANS), i);
+            queue.size = PlanCodec.writeKeyframe(out, 1, queue, PlanChunks.MAX_TRANSFER);
+            queues[i] = queue;
+            sent[i].set(queue, queue.size, 1);
+            relay.handleSync(i, out.toBytes());
+        }
+        // The budget is high enough for the initial transfers to go out at once
+        relay.flush(1f);
+    }
+
+    /** Every player places or removes one plan, then the relay flushes. */
+    @Benchmark
+    public long syncAndFlush() {
+        added = !added;
+        for (int i = 0; i < players; i++) {
+            LongSeq queue = queues[i];
+            if (added) queue.add(extra);
+            else queue.size--;
+
+            PlanState state = sent[i];
+            int version = state.version + 1;
+            out.reset();
+            PlanCodec.writeDelta(out, state.version, version, state.plans, queue);
+            state.set(queue, queue.size, version);
+            relay.handleSync(i, out.toBytes());
+        }
+        relay.flush(1f);
+        return relay.bytesSent;
+    }
+}
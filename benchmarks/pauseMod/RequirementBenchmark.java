@@ -0,0 +1,57 @@
+package pauseMod;
+
+import arc.struct.LongSeq;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One frame of the resource preview's requirement calculation, see
+ * {@code ResourcePreviewUI.calculateRequiredResources}. Players are plain ids instead of {@code Groups.player}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequirementBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int plans;
+
+    @Param({"1", "8", "32"})
+    public int players;
+
+    private RequirementTracker tracker;
+    private LongSeq[] queues;
+    private int version;
+
+    @Setup
+    public void setup() {
+        tracker = new RequirementTracker(BenchData.blockCosts(), BenchData.items);
+        queues = new LongSeq[players];
+        for (int i = 0; i < players; i++) queues[i] = BenchData.plans(plans, i);
+        frame(0);
+    }
+
+    private boolean frame(int changed) {
+        tracker.begin();
+        for (int i = 0; i < players; i++) {
+            tracker.update(i, queues[i], i == changed ? version : 0);
+        }
+        return tracker.end();
+    }
+
+    /** Nobody changed their queue, the usual frame while paused. */
+    @Benchmark
+    public boolean unchanged() {
+        return frame(-1);
+    }
+
+    /** One player changed their queue this frame. */
+    @Benchmark
+    public boolean oneChanged() {
+        version++;
+        return frame(0);
+    }
+}
@@ -0,0 +1,274 @@
+package pauseMod;
+
+import arc.func.Cons;
+import arc.struct.IntIntMap;
+import arc.struct.IntMap;
+import arc.struct.IntSeq;
+import arc.struct.ObjectMap;
+import arc.struct.Seq;
+
+import java.nio.charset.StandardCharsets;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * In-process stand-in for Mindustry's net: one server and any number of clients, with a fixed one-way latency
+ * and a virtual clock.
+ *
+ * Packets can be lost. Reliable packets are then sent again after a retransmission timeout, and since each
+ * direction of a connection is one ordered stream like Mindustry's TCP connection, everything sent after them on it
+ * waits too. Unreliable packets are simply gone, and may also be delayed by up to {@code jitter} milliseconds,
+ * overtaking each other.
+ *
+ * Sizes are approximate wire sizes: framing, the packet type and the payload.
+ */
+public class Loopback {
+    /** Framing and length prefixes Mindustry adds around a custom packet's type and contents. */
+    public static final int overhead = 7;
+
+    public final int latency;
+    /** Chance of losing each packet, and most extra milliseconds an unreliable one takes. */
+    public final float loss;
+    public final int jitter;
+    public final Endpoint server = new Endpoint(-1);
+    public final IntMap<Endpoint> clients = new IntMap<>();
+    /** Team of each client, 0 unless set. */
+    public final IntIntMap teams = new IntIntMap();
+    /** Packets and bytes per packet type. */
+    public final ObjectMap<String, long[]> types = new ObjectMap<>();
+
+    /** Virtual time in milliseconds. */
+    public long now;
+    /** Unreliable packets lost, and reliable ones that had to be sent again. */
+    public long lost, retransmitted;
+    private long sequence;
+    private final Random random;
+    private final PriorityQueue<Packet> inFlight = new PriorityQueue<>((a, b) -> a.time != b.time ? Long.compare(a.time, b.time) : Long.compare(a.sequence, b.sequence));
+
+    static class Packet {
+        long time, sequence;
+        Endpoint from, to;
+        String type, text;
+        byte[] bytes;
+    }
+
+    public Loopback(int latency, float loss, int jitter, long seed) {
+        this.latency = latency;
+        this.loss = loss;
+        this.jitter = jitter;
+        random = new Random(seed);
+    }
+
+    /** Milliseconds before a lost reliable packet is sent again. */
+    private int retransmitTimeout() {
+        return Math.max(200, 2 * latency);
+    }
+
+    public Endpoint connect(int id) {
+        Endpoint client = new Endpoint(id);
+        clients.put(id, client);
+        return client;
+    }
+
+    /** Delivers everything due by {@code time}, in order. */
+    public void advance(long time) {
+        while (!inFlight.isEmpty() && inFlight.peek().time <= time) {
+            Packet packet = inFlight.poll();
+            now = packet.time;
+            packet.to.receive(packet);
+        }
+        now = time;
+    }
+
+    /** Delivers everything in flight, including what is sent in reply, however long it takes. */
+    public void drain() {
+        while (!inFlight.isEmpty()) advance(inFlight.peek().time);
+    }
+
+    private void send(Endpoint from, Endpoint to, String type, String text, byte[] bytes, boolean reliable) {
+        if (to == null) return;
+
+        Packet packet = new Packet();
+        packet.time = now + latency;
+        if (reliable) {
+            while (loss > 0 && random.nextFloat() < loss) {
+                packet.time += retransmitTimeout();
+                retransmitted++;
+            }
+            // Nothing on the stream is delivered before what was sent ahead of it
+            Endpoint client = from.isServer() ? to : from;
+            long ahead = from.isServer() ? client.downstream : client.upstream;
+            packet.time = Math.max(packet.time, ahead);
+            if (from.isServer()) {
+                client.downstream = packet.time;
+            } else {
+                client.upstream = packet.time;
+            }
+        } else if (loss > 0 && random.nextFloat() < loss) {
+            packet = null;
+            lost++;
+        } else if (jitter > 0) {
+            packet.time += random.nextInt(jitter + 1);
+        }
+        count(from, to, type, text, bytes);
+        if (packet == null) return;
+
+        packet.sequence = sequence++;
+        packet.from = from;
+        packet.to = to;
+        packet.type = type;
+        packet.text = text;
+        packet.bytes = bytes;
+        inFlight.add(packet);
+    }
+
+    private void count(Endpoint from, Endpoint to, String type, String text, byte[] bytes) {
+        int size = overhead + type.length() + (bytes != null ? bytes.length : text.getBytes(StandardCharsets.UTF_8).length);
+        from.packetsOut++;
+        from.bytesOut += size;
+        to.packetsIn++;
+        to.bytesIn += size;
+        long[] stats = types.get(type);
+        if (stats == null) types.put(type, stats = new long[2]);
+        stats[0]++;
+        stats[1] += size;
+    }
+
+    public class Endpoint implements NetBridge {
+        public final int id;
+        public long packetsOut, packetsIn, bytesOut, bytesIn;
+        /** When the last reliable packet to and from the server arrives, for a client. */
+        long downstream, upstream;
+
+        private final ObjectMap<String, ServerHandler<String>> serverText = new ObjectMap<>();
+        private final ObjectMap<String, ServerHandler<byte[]>> serverBinary = new ObjectMap<>();
+        private final ObjectMap<String, Cons<String>> clientText = new ObjectMap<>();
+        private final ObjectMap<String, Cons<byte[]>> clientBinary = new ObjectMap<>();
+
+        Endpoint(int id) {
+            this.id = id;
+        }
+
+        private boolean isServer() {
+            return this == server;
+        }
+
+        void receive(Packet packet) {
+            if (isServer()) {
+                if (packet.bytes != null) {
+                    ServerHandler<byte[]> handler = serverBinary.get(packet.type);
+                    if (handler != null) handler.handle(packet.from.id, packet.bytes);
+                } else {
+                    ServerHandler<String> handler = serverText.get(packet.type);
+                    if (handler != null) handler.handle(packet.from.id, packet.text);
+                }
+            } else {
+                if (packet.bytes != null) {
+                    Cons<byte[]> handler = clientBinary.get(packet.type);
+                    if (handler != null) handler.get(packet.bytes);
+                } else {
+                    Cons<String> handler = clientText.get(packet.type);
+                    if (handler != null) handler.get(packet.text);
+                }
+            }
+        }
+
+        // Like in game, both sides register every handler but only the ones for their side get packets
+
+        @Override
+        public void onServer(String type, ServerHandler<String> handler) {
+            if (isServer()) serverText.put(type, handler);
+        }
+
+        @Override
+        public void onServerBinary(String type, ServerHandler<byte[]> handler) {
+            if (isServer()) serverBinary.put(type, handler);
+        }
+
+        @Override
+        public void onClient(String type, Cons<String> handler) {
+            if (!isServer()) clientText.put(type, handler);
+        }
+
+        @Override
+        public void onClientBinary(String type, Cons<byte[]> handler) {
+            if (!isServer()) clientBinary.put(type, handler);
+        }
+
+        @Override
+        public void sendServer(String type, String data) {
+            if (!isServer()) Loopback.this.send(this, server, type, data, null, true);
+        }
+
+        @Override
+        public void sendServer(String type, byte[] data) {
+            if (!isServer()) Loopback.this.send(this, server, type, null, data, true);
+        }
+
+        @Override
+        public void send(int player, String type, String data) {
+            if (isServer()) Loopback.this.send(this, clients.get(player), type, data, null, true);
+        }
+
+        @Override
+        public void send(int player, String type, byte[] data) {
+            if (isServer()) Loopback.this.send(this, clients.get(player), type, null, data, true);
+        }
+
+        @Override
+        public void sendServerUnreliable(String type, byte[] data) {
+            if (!isServer()) Loopback.this.send(this, server, type, null, data, false);
+        }
+
+        @Override
+        public void sendUnreliable(int player, String type, byte[] data) {
+            if (isServer()) Loopback.this.send(this, clients.get(player), type, null, data, false);
+        }
+
+        @Override
+        public void broadcast(String type, String data) {
+            if (!isServer()) return;
+            for (Endpoint client : clients.values()) Loopback.this.send(this, client, type, data, null, true);
+        }
+
+        @Override
+        public void broadcast(String type, byte[] data) {
+            if (!isServer()) return;
+            for (Endpoint client : clients.values()) Loopback.this.send(this, client, type, null, data, true);
+        }
+
+        @Override
+        public int localPlayer() {
+            return id;
+        }
+
+        @Override
+        public int clients() {
+            return clients.size;
+        }
+
+        @Override
+        public void players(IntSeq out) {
+            out.clear();
+            for (IntMap.Entry<Endpoint> e : clients) out.add(e.key);
+        }
+
+        @Override
+        public int team(int player) {
+            return clients.containsKey(player) ? teams.get(player, 0) : -1;
+        }
+
+        @Override
+        public long millis() {
+            return now;
+        }
+    }
+
+    /** Clients in id order, for reports. */
+    public Seq<Endpoint> sortedClients() {
+        Seq<Endpoint> out = new Seq<>();
+        for (Endpoint client : clients.values()) out.add(client);
+        out.sort((a, b) -> Integer.compare(a.id, b.id));
+        return out;
+    }
+}
@@ -0,0 +1,73 @@
+package pauseMod;
+
+import arc.struct.LongSeq;
+import arc.struct.Queue;
+import mindustry.entities.units.BuildPlan;
+
+/** The server or one client, each with its own copy of the mod's sync state and packet handlers. */
+public class SimPeer implements PauseHost {
+    public final Simulator sim;
+    public final Loopback.Endpoint net;
+    public final PlanSync planSync;
+    public final PlanRelay planRelay;
+    public final PacketHandlers packets;
+
+    /** The peer's own plan queue, in {@link PlanCodec} form. */
+    public final LongSeq queue = new LongSeq();
+    public boolean paused, changed;
+
+    // Scripted plan editing, see Simulator.drag
+    int cursorX, cursorY, rotation, dragFrames, idleFrames;
+
+    public SimPeer(Simulator sim, Loopback.Endpoint net, PlanIndex index) {
+        this.sim = sim;
+        this.net = net;
+        // Decoded in place so runs stay deterministic
+        planSync = new PlanSync(net, index, Runnable::run) {
+            @Override
+            protected void applied(int pid, LongSeq plans, Queue<BuildPlan> queue) {
+                // No units to show the plans on
+            }
+
+            @Override
+            protected Queue<BuildPlan> buildQueue(LongSeq plans) {
+                return null;
+            }
+        };
+        planRelay = new PlanRelay(net, index.blockSizes());
+        // Never asked to resync, there is no world to compare
+        packets = new PacketHandlers(net, this, planSync, planRelay, new WorldSync(net));
+        packets.register();
+    }
+
+    @Override
+    public boolean inGame() {
+        return true;
+    }
+
+    @Override
+    public boolean isPaused() {
+        return paused;
+    }
+
+    @Override
+    public void setPaused(boolean paused) {
+        if (this.paused != paused) {
+            this.paused = paused;
+            if (net != sim.network.server) sim.pauseVisible(this);
+        }
+    }
+
+    @Override
+    public boolean canPause(int player) {
+        return true;
+    }
+
+    @Override
+    public void showToast(int player, boolean paused) {
+    }
+
+    @Override
+    public void stateReceived(boolean paused) {
+    }
+}
@@ -0,0 +1,393 @@
+package pauseMod;
+
+import arc.Core;
+import arc.Settings;
+import arc.struct.IntMap;
+import arc.struct.LongSeq;
+import arc.struct.ObjectMap;
+import arc.struct.Seq;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Runs one server and N clients over {@link Loopback} with the mod's real packet handlers, following a scripted
+ * workload, and writes bandwidth, packet counts and pause latency to CSV files so protocol changes can be compared.
+ *
+ * Usage: {@code ./gradlew simulate -PsimArgs="--clients 30 --workload mixed"}, see {@link #main} for options.
+ */
+public class Simulator {
+    /** What the simulated players do. */
+    public enum Workload {
+        /** Paused once at the start, nobody does anything. */
+        idle(0, false),
+        /** A random player toggles pause every 2 seconds. */
+        toggle(2000, false),
+        /** Paused once at the start, everyone drags out, undoes and clears plans. */
+        drag(0, true),
+        /** Dragging plans while the game is toggled every 5 seconds. */
+        mixed(5000, true),
+        /** Like drag, but players also place large schematics that need chunked transfers. */
+        schematic(0, true, true),
+        /** Like schematic, but players mostly stamp out designs from a small shared library, turned any way. */
+        factory(0, true, true, true),
+        /** Random players mash the pause key, a toggle every 50 ms. */
+        spam(50, false);
+
+        final int togglePeriod;
+        final boolean edits, pastes, library;
+
+        Workload(int togglePeriod, boolean edits) {
+            this(togglePeriod, edits, false);
+        }
+
+        Workload(int togglePeriod, boolean edits, boolean pastes) {
+            this(togglePeriod, edits, pastes, false);
+        }
+
+        Workload(int togglePeriod, boolean edits, boolean pastes, boolean library) {
+            this.togglePeriod = togglePeriod;
+            this.edits = edits;
+            this.pastes = pastes;
+            this.library = library;
+        }
+    }
+
+    static final int frameRate = 60, maxPlans = 2000, maxPastedPlans = 12000, blocks = 300, settleSeconds = 10, designs = 6;
+
+    public final Loopback network;
+    public final Seq<SimPeer> clients = new Seq<>();
+    public final SimPeer server;
+    private final Workload workload;
+    private final int seconds, flush, late, teams, view;
+    private final Random random;
+    private final int[] sizes;
+    /** Designs the factory workload stamps out. */
+    private final LongSeq[] library = new LongSeq[designs];
+
+    /** Virtual time of the last pause request, and how long each client took to see its effect. */
+    private long requested = -1;
+    private final LongSeq pauseLatency = new LongSeq();
+    /** Remote views that still differed from their owner's queue after the network settled. */
+    private int mismatched;
+
+    /**
+     * @param late how many of the clients only join halfway through
+     * @param teams how many teams the clients are spread over
+     * @param view tiles across that clients report seeing around their cursor, or 0 to not report any
+     * @param loss chance of losing each packet, see {@link Loopback}
+     * @param jitter most milliseconds an unreliable packet is delayed by on top of the latency
+     */
+    public Simulator(int clientCount, int late, int teams, int view, int seconds, Workload workload, int latency, float loss, int jitter, int flush, long seed) {
+        this.seconds = seconds;
+        this.teams = Math.max(teams, 1);
+        this.view = view;
+        this.late = Math.min(late, clientCount - 1);
+        this.workload = workload;
+        this.flush = flush;
+        random = new Random(seed);
+        network = new Loopback(latency, loss, jitter, seed);
+
+        // Stand-in for the loaded content's block sizes
+        sizes = new int[blocks];
+        for (int i = 0; i < sizes.length; i++) sizes[i] = 1 + random.nextInt(4);
+        for (int i = 0; i < designs; i++) {
+            int width = 8 + random.nextInt(24), height = 8 + random.nextInt(24);
+            library[i] = new LongSeq(width * height);
+            for (int j = 0; j < width * height; j++) {
+                library[i].add(PlanCodec.pack(j % width, j / width, random.nextInt(4), random.nextInt(blocks), false));
+            }
+        }
+        server = new SimPeer(this, network.server, new PlanIndex(sizes));
+        for (int i = 0; i < clientCount - this.late; i++) join();
+    }
+
+    private SimPeer join() {
+        int id = clients.size + 1;
+        network.teams.put(id, clients.size % teams);
+        SimPeer client = new SimPeer(this, network.connect(id), new PlanIndex(sizes));
+        client.cursorX = random.nextInt(400);
+        client.cursorY = random.nextInt(400);
+        clients.add(client);
+        return client;
+    }
+
+    public void run() {
+        long frames = (long)seconds * frameRate;
+        long nextToggle = workload.togglePeriod;
+        request(clients.first());
+
+        for (long frame = 0; frame <= frames; frame++) {
+            long now = frame * 1000 / frameRate;
+            network.advance(now);
+
+            if (frame == frames / 2) {
+                // Joining players get the world with its pause state, then the server's snapshot of everyone's plans
+                for (int i = 0; i < late; i++) {
+                    SimPeer client = join();
+                    client.paused = server.paused;
+                    server.planRelay.playerJoined(client.net.id);
+                }
+            }
+
+            if (workload.togglePeriod > 0 && now >= nextToggle) {
+                nextToggle += workload.togglePeriod;
+                request(clients.get(random.nextInt(clients.size)));
+            }
+
+            for (int i = 0; i < clients.size; i++) {
+                SimPeer client = clients.get(i);
+                if (workload.edits) drag(client);
+                // Like Main, only paused clients sync their queue and only when it changed
+                if (client.paused && client.changed) client.planSync.updateLocal(client.queue);
+                client.changed = false;
+                if (client.paused && view > 0) {
+                    client.planSync.reportView(client.cursorX - view / 2, client.cursorY - view / 2, client.cursorX + view / 2, client.cursorY + view / 2);
+                }
+                client.planSync.update();
+            }
+
+            server.packets.update();
+            server.planRelay.update();
+        }
+
+        // Let every queue reach everyone, then check that they did
+        for (int i = 0; i < clients.size; i++) {
+            clients.get(i).planSync.updateLocal(clients.get(i).queue);
+        }
+        for (long frame = frames + 1; frame <= frames + (long)settleSeconds * frameRate; frame++) {
+            long now = frame * 1000 / frameRate;
+            network.advance(now);
+            server.packets.update();
+            server.planRelay.update();
+            for (int i = 0; i < clients.size; i++) clients.get(i).planSync.update();
+        }
+        // Deliver what the last flush sent, e.g. a summary replacing plans that just went out of view
+        network.drain();
+        for (int i = 0; i < clients.size; i++) clients.get(i).planSync.update();
+        for (int i = 0; i < clients.size; i++) {
+            for (int j = 0; j < clients.size; j++) {
+                if (i != j && !matches(clients.get(i), clients.get(j))) mismatched++;
+            }
+            if (!indexed(clients.get(i))) mismatched++;
+        }
+    }
+
+    /** Whether the viewer's plan index holds exactly the plans it shows, as if built from scratch. */
+    private boolean indexed(SimPeer viewer) {
+        PlanIndex index = viewer.planSync.index();
+        IntMap<LongSeq> found = new IntMap<>();
+        index.query(-100000, -100000, 100000, 100000, (owner, plan) -> {
+            LongSeq plans = found.get(owner);
+            if (plans == null) found.put(owner, plans = new LongSeq());
+            plans.add(plan);
+        });
+        int total = 0;
+        for (int i = 0; i < clients.size; i++) {
+            int id = clients.get(i).net.id;
+            LongSeq shown = viewer.planSync.plans(id), plans = found.get(id, empty);
+            if (shown == null) shown = empty;
+            if (!sameSorted(shown, plans)) return false;
+            total += shown.size;
+        }
+        return total == index.size();
+    }
+
+    private static boolean sameSorted(LongSeq a, LongSeq b) {
+        if (a.size != b.size) return false;
+        long[] x = Arrays.copyOf(a.items, a.size), y = Arrays.copyOf(b.items, b.size);
+        Arrays.sort(x);
+        Arrays.sort(y);
+        return Arrays.equals(x, y);
+    }
+
+    /** Whether the viewer has the owner's plans in detail if the server sends them, or else a correct summary. */
+    private boolean matches(SimPeer viewer, SimPeer owner) {
+        LongSeq shown = viewer.planSync.plans(owner.net.id);
+        if (shown == null) shown = empty;
+        if (server.planRelay.watching(viewer.net.id, owner.net.id)) return same(shown, owner.queue);
+
+        PlanSync.Summary summary = viewer.planSync.summaries().get(owner.net.id);
+        boolean visible = !PlanRelay.teamOnly() || network.teams.get(viewer.net.id, 0) == network.teams.get(owner.net.id, 0);
+        if (!visible || owner.queue.isEmpty()) return shown.isEmpty() && summary == null;
+        return shown.isEmpty() && summary != null && summary.count == owner.queue.size;
+    }
+
+    private static final LongSeq empty = new LongSeq();
+
+    private static boolean same(LongSeq a, LongSeq b) {
+        if (a.size != b.size) return false;
+        for (int i = 0; i < a.size; i++) {
+            if (a.items[i] != b.items[i]) return false;
+        }
+        return true;
+    }
+
+    private void request(SimPeer client) {
+        requested = network.now;
+        client.packets.requestPause();
+    }
+
+    void pauseVisible(SimPeer client) {
+        if (requested >= 0) pauseLatency.add(network.now - requested);
+    }
+
+    /** Drags out a line of plans for a few seconds, then pauses and sometimes undoes part of it or clears all. */
+    private void drag(SimPeer client) {
+        if (client.dragFrames > 0) {
+            client.dragFrames--;
+            if (client.queue.size < maxPlans) {
+                client.queue.add(PlanCodec.pack(client.cursorX, client.cursorY, client.rotation, random.nextInt(blocks), false));
+                client.changed = true;
+            }
+            if (client.rotation % 2 == 0) client.cursorX += client.rotation == 0 ? 1 : -1;
+            else client.cursorY += client.rotation == 1 ? 1 : -1;
+        } else if (client.idleFrames > 0) {
+            client.idleFrames--;
+        } else {
+            float roll = random.nextFloat();
+            boolean pasted = workload.pastes && roll < (workload.library ? 0.3f : 0.05f);
+            if (pasted) {
+                paste(client);
+            } else if (roll < 0.1f) {
+                client.queue.clear();
+                client.changed = true;
+            } else if (roll < 0.4f && client.queue.size > 0) {
+                client.queue.size = Math.max(client.queue.size - 1 - random.nextInt(10), 0);
+                client.changed = true;
+            }
+            client.rotation = random.nextInt(4);
+            client.dragFrames = frameRate + random.nextInt(frameRate * 2);
+            client.idleFrames = frameRate / 2 + random.nextInt(frameRate * 3 / 2);
+            // Stamping players look around for the next spot instead of dragging right away
+            if (pasted && workload.library) client.dragFrames = 0;
+        }
+    }
+
+    /** Places a rectangular schematic of a few hundred to a few thousand plans at once. */
+    private void paste(SimPeer client) {
+        if (workload.library) {
+            LongSeq design = library[random.nextInt(designs)];
+            int turns = random.nextInt(4), x = random.nextInt(400), y = random.nextInt(400);
+            for (int i = 0; i < design.size && client.queue.size < maxPastedPlans; i++) {
+                long plan = StampCache.rotate(design.items[i], turns, sizes);
+                client.queue.add(PlanCodec.pack(PlanCodec.x(plan) + x, PlanCodec.y(plan) + y, PlanCodec.rotation(plan), PlanCodec.block(plan), false));
+            }
+            client.changed = true;
+            return;
+        }
+        int width = 20 + random.nextInt(60), height = 20 + random.nextInt(60);
+        int x = random.nextInt(400), y = random.nextInt(400);
+        for (int i = 0; i < width * height && client.queue.size < maxPastedPlans; i++) {
+            client.queue.add(PlanCodec.pack(x + i % width, y + i / width, random.nextInt(4), random.nextInt(blocks), false));
+        }
+        client.changed = true;
+    }
+
+    public void write(File dir, String run) throws IOException {
+        dir.mkdirs();
+        float duration = Math.max(seconds, 1);
+
+        try (PrintWriter out = new PrintWriter(new FileWriter(new File(dir, "clients.csv")))) {
+            out.println("client,up_bytes_per_s,down_bytes_per_s,up_packets,down_packets");
+            for (Loopback.Endpoint client : network.sortedClients()) {
+                out.println(client.id + "," + (long)(client.bytesOut / duration) + "," + (long)(client.bytesIn / duration) + "," + client.packetsOut + "," + client.packetsIn);
+            }
+        }
+
+        try (PrintWriter out = new PrintWriter(new FileWriter(new File(dir, "packets.csv")))) {
+            out.println("type,packets,bytes");
+            for (ObjectMap.Entry<String, long[]> entry : network.types) {
+                out.println(entry.key + "," + entry.value[0] + "," + entry.value[1]);
+            }
+        }
+
+        long down = 0, downMax = 0, up = 0, packets = 0;
+        for (Loopback.Endpoint client : network.clients.values()) {
+            down += client.bytesIn;
+            downMax = Math.max(downMax, client.bytesIn);
+            up += client.bytesOut;
+            packets += client.packetsIn + client.packetsOut;
+        }
+        int count = Math.max(network.clients.size, 1);
+        long[] latency = Arrays.copyOf(pauseLatency.items, pauseLatency.size);
+        Arrays.sort(latency);
+
+        // Round trips the clients measured themselves, from request to confirmed state
+        long stale = 0;
+        float roundTrips = 0;
+        int measured = 0;
+        for (int i = 0; i < clients.size; i++) {
+            PacketHandlers handlers = clients.get(i).packets;
+            stale += handlers.staleStates;
+            if (handlers.roundTripAverage >= 0) {
+                roundTrips += handlers.roundTripAverage;
+                measured++;
+            }
+        }
+
+        // Appended to, so runs before and after a change end up side by side
+        File summary = new File(dir, "summary.csv");
+        boolean header = !summary.exists();
+        try (PrintWriter out = new PrintWriter(new FileWriter(summary, true))) {
+            if (header) {
+                out.println("run,workload,clients,seconds,latency_ms,flush_ms,budget_kb,down_bytes_per_s_avg,down_bytes_per_s_max,up_bytes_per_s_avg,packets,pause_samples,pause_p50_ms,pause_p90_ms,pause_p99_ms,pause_max_ms,plan_packets_received,throttled_flushes,chunked_transfers,restarted_transfers,mismatched_views,pause_changes,collapsed_toggles,stale_states,round_trip_avg_ms,stamps_sent,stamp_bodies_sent,late_clients,unchanged_updates,snapshots,teams,view_tiles,filtered_updates,summaries,loss,jitter_ms,update_packets,skipped_updates,lost_packets,retransmitted_packets,rejected_packets");
+            }
+            out.println(run + "," + workload + "," + network.clients.size + "," + seconds + "," + network.latency + "," + flush + "," + PlanRelay.budget() / 1024 + ","
+                + (long)(down / duration / count) + "," + (long)(downMax / duration) + "," + (long)(up / duration / count) + "," + packets + ","
+                + latency.length + "," + percentile(latency, 0.5f) + "," + percentile(latency, 0.9f) + "," + percentile(latency, 0.99f) + "," + percentile(latency, 1f) + ","
+                + server.planRelay.packetsReceived + "," + server.planRelay.throttled + "," + server.planRelay.transfers + "," + server.planRelay.canceled + "," + mismatched + ","
+                + server.packets.toggles + "," + server.packets.collapsed + "," + stale + "," + (measured == 0 ? -1 : Math.round(roundTrips / measured)) + ","
+                + server.planRelay.stampsSent() + "," + server.planRelay.stampBodiesSent() + ","
+                + late + "," + server.planRelay.duplicates + "," + server.planRelay.snapshots + ","
+                + teams + "," + view + "," + server.planRelay.filtered + "," + server.planRelay.summaries + ","
+                + network.loss + "," + network.jitter + "," + server.planRelay.updatesSent + "," + server.planRelay.skipped + "," + network.lost + "," + network.retransmitted + "," + server.planRelay.rejected);
+        }
+    }
+
+    static long percentile(long[] sorted, float p) {
+        if (sorted.length == 0) return -1;
+        int index = (int)Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    /**
+     * Options: {@code --clients 8 --seconds 60 --workload mixed --latency 50 --flush 100 --budget 48 --debounce 250 --seed 1
+     * --late 0 --teams 1 --view 0 --loss 0 --jitter 0 --unreliable false --run name --out build/sim}; {@code --late}
+     * clients of the total join halfway through, with {@code --view} every client reports seeing that many tiles across
+     * around its cursor, {@code --loss} is the chance of losing a packet, e.g. 0.05, and {@code --unreliable true} turns
+     * on unreliable plan updates
+     */
+    public static void main(String[] args) throws IOException {
+        ObjectMap<String, String> options = new ObjectMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) throw new IllegalArgumentException("Expected an option, got " + args[i]);
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+
+        int clients = Integer.parseInt(options.get("clients", "8"));
+        int seconds = Integer.parseInt(options.get("seconds", "60"));
+        Workload workload = Workload.valueOf(options.get("workload", "mixed"));
+        int latency = Integer.parseInt(options.get("latency", "50"));
+        int flush = Integer.parseInt(options.get("flush", "100"));
+
+        Core.settings = new Settings();
+        Core.settings.put("multiplayerpause-planflushms", flush);
+        Core.settings.put("multiplayerpause-planbudget", Integer.parseInt(options.get("budget", "48")));
+        Core.settings.put("multiplayerpause-pausedebouncems", Integer.parseInt(options.get("debounce", "250")));
+        Core.settings.put("multiplayerpause-planunreliable", Boolean.parseBoolean(options.get("unreliable", "false")));
+
+        Simulator sim = new Simulator(clients, Integer.parseInt(options.get("late", "0")), Integer.parseInt(options.get("teams", "1")),
+            Integer.parseInt(options.get("view", "0")), seconds, workload, latency, Float.parseFloat(options.get("loss", "0")),
+            Integer.parseInt(options.get("jitter", "0")), flush, Integer.parseInt(options.get("seed", "1")));
+        sim.run();
+
+        File out = new File(options.get("out", "build/sim"));
+        sim.write(out, options.get("run", workload + "-" + clients));
+        System.out.println("Wrote results to " + out.getAbsolutePath() + (sim.mismatched > 0 ? ", " + sim.mismatched + " remote views did not match" : ""));
+    }
+}
@@ -0,0 +1,80 @@
+package pauseMod;
+
+import arc.Core;
+import arc.struct.Seq;
+import arc.util.Time;
+import mindustry.game.Team;
+import mindustry.world.blocks.storage.CoreBlock.CoreBuild;
+import mindustry.world.modules.ItemModule;
+
+import static mindustry.Vars.*;
+
+/**
+ * Snapshot of a team's core storage, indexed by item id.
+ *
+ * Re-reading every item every frame is wasteful while paused, so the snapshot is only refreshed when the team,
+ * its cores or the stored total changed, or when the refresh interval passed (which catches item swaps that
+ * keep the total the same).
+ */
+public class CoreInventory {
+    /** Stored amount of each item, indexed by item id. */
+    public final int[] amounts;
+
+    private final Seq<ItemModule> modules = new Seq<>();
+    private Team team;
+    private int cores = -1, total = -1;
+    private long lastRefresh;
+
+    public CoreInventory(int itemCount) {
+        amounts = new int[itemCount];
+    }
+
+    public static CoreInventory fromContent() {
+        return new CoreInventory(content.items().size);
+    }
+
+    /** Milliseconds between forced refreshes. */
+    public static int refreshInterval() {
+        return Core.settings.getInt("multiplayerpause-corerefreshms", 1000);
+    }
+
+    /** @return whether any amount changed */
+    public boolean update(Team team) {
+        Seq<CoreBuild> builds = team == null || team.data() == null ? null : team.data().cores;
+        int count = builds == null ? 0 : builds.size;
+
+        // Cores of a team normally share one ItemModule, so only distinct modules are summed
+        modules.clear();
+        int sum = 0;
+        for (int i = 0; i < count; i++) {
+            ItemModule items = builds.get(i).items;
+            if (items == null || modules.contains(items, true)) continue;
+            modules.add(items);
+            sum += items.total();
+        }
+
+        if (team == this.team && count == cores && sum == total && Time.timeSinceMillis(lastRefresh) < refreshInterval()) {
+            return false;
+        }
+        this.team = team;
+        cores = count;
+        total = sum;
+        lastRefresh = Time.millis();
+        return refresh();
+    }
+
+    private boolean refresh() {
+        boolean changed = false;
+        for (int id = 0; id < amounts.length; id++) {
+            int amount = 0;
+            for (int i = 0; i < modules.size; i++) {
+                amount += modules.get(i).get(id);
+            }
+            if (amounts[id] != amount) {
+                amounts[id] = amount;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+}
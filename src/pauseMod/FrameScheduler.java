@@ -0,0 +1,117 @@
+package pauseMod;
+
+import arc.Core;
+import arc.struct.Seq;
+import arc.util.Time;
+
+/**
+ * Runs the mod's work that doesn't have to happen every frame, such as refreshing the resource preview or syncing
+ * the local plans, within a per-frame time budget.
+ *
+ * Work is registered once as a {@link Task} and asked for with {@link Task#request} whenever it should run. Every
+ * frame, {@link #run} goes through the requested tasks by priority and runs the ones that still fit in what is left
+ * of the budget, judged by how long each took before; the rest wait for a later frame. A task that waited its
+ * {@code maxDelay} runs whatever the budget, so nothing is ever more than that out of date, and a heavy frame only
+ * pushes work back instead of dropping it.
+ */
+public class FrameScheduler {
+    /** Priorities, run in this order. */
+    public static final int HIGH = 0, NORMAL = 1, LOW = 2;
+
+    public static class Task {
+        public final String name;
+        final int priority;
+        final long maxDelay;
+        final Runnable work;
+        final Metrics.Timer timer;
+        boolean requested;
+        long requestedAt, ranFrame = -1;
+        /** Recent nanoseconds per run, a moving average. */
+        float cost;
+
+        // Statistics
+        public long runs, deferred, overdue;
+
+        Task(String name, int priority, long maxDelay, Runnable work, Metrics.Timer timer) {
+            this.name = name;
+            this.priority = priority;
+            this.maxDelay = maxDelay;
+            this.work = work;
+            this.timer = timer;
+        }
+
+        /** Asks for the task to run, at the latest once it waited {@code maxDelay}. Asking again until then does nothing. */
+        public void request() {
+            if (requested) return;
+            requested = true;
+            requestedAt = Time.nanos();
+        }
+    }
+
+    private final Metrics metrics;
+    private final Seq<Task> tasks = new Seq<>();
+    private long frame;
+
+    // Statistics
+    public long deferred, overdue;
+
+    public FrameScheduler(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /** Nanoseconds of mod work per frame that tasks are run within. */
+    public static long budget() {
+        return Core.settings.getInt("multiplayerpause-framebudget", 1000) * 1000L;
+    }
+
+    /**
+     * @param maxDelay milliseconds the task may wait once requested
+     * @param work what to run, on the game thread
+     */
+    public Task add(String name, int priority, long maxDelay, Runnable work) {
+        Task task = new Task(name, priority, maxDelay * 1000000L, work, metrics.timer(name));
+        tasks.add(task);
+        tasks.sort((a, b) -> Integer.compare(a.priority, b.priority));
+        return task;
+    }
+
+    /**
+     * Runs the requested tasks that are due or fit in the budget. Called once per frame.
+     * @param start {@link Time#nanos} when the mod's work this frame started, which counts against the budget
+     */
+    public void run(long start) {
+        frame++;
+        long budget = budget(), now = Time.nanos();
+
+        // Overdue tasks first, then the rest by priority while they fit
+        for (int i = 0; i < tasks.size; i++) {
+            Task task = tasks.get(i);
+            if (task.requested && now - task.requestedAt >= task.maxDelay) {
+                task.overdue++;
+                overdue++;
+                execute(task);
+            }
+        }
+        for (int i = 0; i < tasks.size; i++) {
+            Task task = tasks.get(i);
+            if (!task.requested || task.ranFrame == frame) continue;
+            if (Time.nanos() - start + task.cost > budget) {
+                task.deferred++;
+                deferred++;
+                continue;
+            }
+            execute(task);
+        }
+    }
+
+    private void execute(Task task) {
+        task.requested = false;
+        task.ranFrame = frame;
+        long begin = Time.nanos();
+        task.work.run();
+        long took = Time.nanos() - begin;
+        task.cost = task.runs == 0 ? took : task.cost * 0.9f + took * 0.1f;
+        task.runs++;
+        if (metrics.enabled) metrics.end(task.timer, begin);
+    }
+}
@@ -1,49 +1,101 @@
 package pauseMod;
 
 import arc.*;
-import arc.struct.Queue;
 import arc.util.*;
 import arc.graphics.*;
 import arc.graphics.g2d.*;
 import arc.scene.ui.layout.*;
 import arc.util.pooling.*;
 import mindustry.core.*;
-import mindustry.entities.units.BuildPlan;
 import mindustry.game.EventType.*;
 import mindustry.gen.*;
 import mindustry.input.*;
 import mindustry.mod.*;
 import mindustry.ui.*;
-import mindustry.world.Block;
 
 import static arc.Core.*;
 import static mindustry.Vars.*;
 
-public class Main extends Mod {
+public class Main extends Mod implements PauseHost {
     private long lastSyncTime;
-    private String lastPlans = "";
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Timer syncTime = metrics.timer("sync update"), inputTime = metrics.timer("pause input"),
+        drawTime = metrics.timer("plan preview draw");
+    private final Metrics.Counter drawnPlans = metrics.counter("plans drawn"), culledPlans = metrics.counter("plans culled"),
+        renderedChunks = metrics.counter("plan chunks rendered"), reusedChunks = metrics.counter("plan chunks reused");
+    private final NetBridge bridge = new MindustryNet(metrics);
+    private final PlanSync planSync = new PlanSync(bridge);
+    private final PlanTracker planTracker = new PlanTracker();
+    private final PlanRelay planRelay = new PlanRelay(bridge);
+    private final WorldSync worldSync = new WorldSync(bridge);
+    private final PacketHandlers packets = new PacketHandlers(bridge, this, planSync, planRelay, worldSync);
+    private final PlanRenderer planRenderer = new PlanRenderer(planSync, metrics);
+    private final FrameScheduler scheduler = new FrameScheduler(metrics);
+    private final FrameScheduler.Task planSyncTask = scheduler.add("plan sync", FrameScheduler.HIGH, 100, this::syncPlans);
     private ResourcePreviewUI resourceUI;
+    private MetricsOverlay metricsOverlay;
 
     @Override
     public void init() {
-        setupPackets();
-        
+        packets.register();
+        metrics.total("relay bytes sent", () -> planRelay.bytesSent);
+        metrics.total("relay flushes throttled", () -> planRelay.throttled);
+        metrics.total("chunked transfers", () -> planRelay.transfers);
+        metrics.total("schematic references sent", planRelay::stampsSent);
+        metrics.total("unchanged plan updates dropped", () -> planRelay.duplicates);
+        metrics.total("plan updates filtered by interest", () -> planRelay.filtered);
+        metrics.total("unreliable plan packets sent", () -> planRelay.updatesSent);
+        metrics.total("resync bytes sent", () -> worldSync.bytesSent);
+        metrics.total("pause state changes", () -> packets.toggles);
+        metrics.total("plan updates superseded", planSync::superseded);
+        metrics.total("build plans allocated", planSync::plansAllocated);
+        metrics.total("build plans reused", planSync::plansReused);
+        metrics.gauge("pause round trip ms", () -> packets.roundTrip);
+        metrics.gauge("plan cache atlas KB", () -> planRenderer.atlasBytes() / 1024);
+        metrics.total("scheduled tasks deferred", () -> scheduler.deferred);
+        metrics.total("scheduled tasks overdue", () -> scheduler.overdue);
+
+        Events.on(ResetEvent.class, e -> {
+            planSync.reset();
+            planRelay.reset();
+            planTracker.invalidate();
+            worldSync.reset();
+            packets.reset();
+            planRenderer.release();
+        });
+        // Region hashes are reused while paused until something changes
+        Events.on(StateChangeEvent.class, e -> worldSync.invalidate());
+        Events.on(TileChangeEvent.class, e -> worldSync.invalidate());
+        Events.on(ConfigEvent.class, e -> worldSync.invalidate());
+        // Fired once the player finished loading the world, so they can use the snapshot right away
+        Events.on(PlayerJoin.class, e -> {
+            if (net.server()) planRelay.playerJoined(e.player.id);
+        });
+        Events.on(PlayerLeave.class, e -> {
+            planRelay.playerLeft(e.player.id);
+            metrics.playerLeft(e.player.id);
+        });
+        // Runs on dedicated servers too, which never get a ClientLoadEvent
+        Events.run(Trigger.update, () -> {
+            long start = metrics.begin();
+            if (net.server()) {
+                planRelay.update();
+                packets.update();
+            } else if (net.client()) {
+                planSync.update();
+            }
+            metrics.end(syncTime, start);
+            metrics.update(net.client() ? "client" : "server");
+        });
+
         Events.on(ClientLoadEvent.class, e -> {
             addSettings();
-            resourceUI = new ResourcePreviewUI();
+            resourceUI = new ResourcePreviewUI(planSync, planTracker, scheduler);
+            metricsOverlay = new MetricsOverlay(metrics);
             setupEvents();
         });
     }
 
-    // Keep setupEvents separate or merge? 
-    // setupEvents uses Events.run(Trigger.update), which is fine to register early, 
-    // but resourceUI internal logic needs to run. 
-    // Better to move setupEvents call inside ClientLoadEvent too, 
-    // OR just keep setupEvents registration here but ensure resourceUI is checked.
-    // However, Main.java uses resourceUI in setupEvents triggers.
-    // So setupEvents MUST be called after resourceUI is assigned.
-
-
     void addSettings() {
         ui.settings.addCategory("Multiplayer Pause", Icon.pause, s -> {
             s.checkPref("multiplayerpause-toasts", true);
@@ -51,188 +103,136 @@ public class Main extends Mod {
             s.checkPref("multiplayerpause-synconpause", false);
             s.checkPref("multiplayerpause-synconunpause", false); // Is enabling this by default a good idea? I have no clue how much desync this mod is going to cause...
             s.checkPref("multiplayerpause-schedulesync", false);
-            
-
-
+            s.sliderPref("multiplayerpause-planflushms", 100, 0, 500, 25, i -> i + " ms");
+            s.sliderPref("multiplayerpause-planbudget", 48, 4, 256, 4, i -> i + " KB/s");
+            s.sliderPref("multiplayerpause-planinbound", 32, 8, 256, 8, i -> i + " KB/s");
+            s.sliderPref("multiplayerpause-corerefreshms", 1000, 250, 5000, 250, i -> i + " ms");
+            s.sliderPref("multiplayerpause-pausedebouncems", 250, 0, 1000, 50, i -> i + " ms");
+            s.sliderPref("multiplayerpause-framebudget", 1000, 250, 4000, 250, i -> Strings.fixed(i / 1000f, 2) + " ms");
+            s.checkPref("multiplayerpause-planteamonly", true);
+            s.checkPref("multiplayerpause-planviewonly", true);
+            s.checkPref("multiplayerpause-planunreliable", false);
+            s.checkPref("multiplayerpause-plancache", true);
             s.checkPref("multiplayerpause-showotherpreview", true);
             s.checkPref("multiplayerpause-shownames", true);
+            s.checkPref("multiplayerpause-metrics", false);
+            s.checkPref("multiplayerpause-metricsdump", false);
         });
     }
 
     void setupEvents() {
         Events.run(Trigger.update, () -> {
+            long frameStart = Time.nanos();
+            long start = metrics.begin();
             if (Core.input.keyTap(Binding.pause) && !renderer.isCutscene() && !scene.hasDialog() && !scene.hasKeyboard() && !ui.restart.isShown() && state.isGame() && net.active()) {
-                if (net.client()) Call.serverPacketReliable("multiplayerpause-request", ""); // Send pause request
-                else showToast(player, !state.isPaused()); // Show toast for host pausing (inverted as the state hasn't been updated yet)
+                if (net.client()) packets.requestPause(); // Send pause request
+                else packets.hostToggled(player.id); // Forward and show toast for host pausing, debounced like requests
             }
 
-            // Sync plans if paused
-            if (state.isPaused() && net.active() && player != null && player.unit() != null) {
-                Queue<BuildPlan> plans = player.unit().plans;
-                String currentPlans = packetString(plans);
-                if (!currentPlans.equals(lastPlans)) {
-                    lastPlans = currentPlans;
-                    if (net.client()) {
-                        Call.serverPacketReliable("multiplayerpause-syncplans", currentPlans);
-                    }
+            if (state.isPaused() && net.active()) planSyncTask.request();
+            // Tell the host what we can see, so other players' plans elsewhere only cost a summary
+            if (state.isPaused() && net.client()) {
+                if (Core.settings.getBool("multiplayerpause-planviewonly")) {
+                    planSync.reportView(
+                        (int)Math.floor((camera.position.x - camera.width / 2f) / tilesize), (int)Math.floor((camera.position.y - camera.height / 2f) / tilesize),
+                        (int)Math.ceil((camera.position.x + camera.width / 2f) / tilesize), (int)Math.ceil((camera.position.y + camera.height / 2f) / tilesize)
+                    );
+                } else {
+                    planSync.clearView();
                 }
             }
+            metrics.end(inputTime, start);
 
             // Update resource preview UI
-            if (resourceUI != null) {
-                resourceUI.update();
-            }
+            if (resourceUI != null) resourceUI.update();
+            // Then whatever deferrable work fits in this frame
+            scheduler.run(frameStart);
+            metricsOverlay.update();
         });
 
         Events.run(Trigger.draw, () -> {
-            if (!state.isPaused() || !net.active() || !Core.settings.getBool("multiplayerpause-showotherpreview")) return;
-
-            for (Player p : Groups.player) {
-                if (p == player || p.unit() == null || p.unit().plans.isEmpty()) continue;
-
-                for (BuildPlan plan : p.unit().plans) {
-                    if (plan.block == null) continue;
-
-                    if (plan.breaking) {
-                        // Draw a red outline for breaking
-                        Draw.color(Color.scarlet);
-                        Lines.stroke(1f);
-                        Lines.rect(plan.drawx() - plan.block.size * tilesize / 2f, plan.drawy() - plan.block.size * tilesize / 2f, plan.block.size * tilesize, plan.block.size * tilesize);
-                        Draw.reset();
-                    } else {
-                        // Draw the plan with half transparency using the block's full region
-                        Draw.color(Color.white, 0.5f);
-                        Draw.rect(plan.block.fullIcon, plan.drawx(), plan.drawy(), plan.rotation * 90);
-                        Draw.reset();
-                    }
-                }
-
-                // Draw player name above their first plan for identification
-                if (Core.settings.getBool("multiplayerpause-shownames") && !p.unit().plans.isEmpty()) {
-                    BuildPlan first = p.unit().plans.first();
-                    Font font = Fonts.outline;
-                    font.setUseIntegerPositions(false);
-                    font.getData().setScale(1f / 4f); // Scale down font for world space
-                    font.setColor(Color.white);
-                    font.draw(p.name, first.drawx(), first.drawy() + first.block.size * tilesize / 2f + 4f, Align.center);
-                    font.getData().setScale(1f); // Reset scale
-                }
+            if (!state.isPaused() || !net.active() || !Core.settings.getBool("multiplayerpause-showotherpreview")) {
+                // Plans and the world change while running, so nothing cached would still be right
+                planRenderer.release();
+                return;
             }
+            long start = metrics.begin();
+            planRenderer.draw();
+            metrics.end(drawTime, start);
+            metrics.add(drawnPlans, planRenderer.drawn);
+            metrics.add(culledPlans, planRenderer.culled);
+            metrics.add(renderedChunks, planRenderer.rendered);
+            metrics.add(reusedChunks, planRenderer.reused);
         });
     }
 
-    void setupPackets() {
-        netServer.addPacketHandler("multiplayerpause-request", (p, data) -> {
-            if (!(p.admin || Core.settings.getBool("multiplayerpause-allowany")) || state.isMenu()) return;
+    /** Syncs plans if paused, only packing them when the tracker saw a change. */
+    private void syncPlans() {
+        if (state.isPaused() && net.active() && player != null && player.unit() != null && planTracker.poll(player.unit())) {
+            if (net.client()) planSync.updateLocal(player.unit().plans);
+        }
+    }
 
-            state.set(state.isPaused() ? GameState.State.playing : GameState.State.paused);
-            showToast(p, state.isPaused());
+    @Override
+    public void registerServerCommands(CommandHandler handler) {
+        handler.register("planstats", "Show how much plan sync, resync and pause traffic the server sent and saved.", args -> {
+            Log.info("Plan relay: @", planRelay.stats());
+            Log.info("World resync: @", worldSync.stats());
+            Log.info("Pause: @", packets.stats());
         });
-        // State changes are forwarded to clients for more responsive pausing (avoids waiting for next stateSnapshot) which should reduce desync (I hope) and allows for toasts
-        netClient.addPacketHandler("multiplayerpause-updatestate", data -> {
-            String[] d = data.split(" ");
-            if (d.length != 2) return;
-            boolean paused = d[1].equals("t");
-            state.set(paused ? GameState.State.paused : GameState.State.playing); // Reflect state change on the client ASAP
-            showToast(Groups.player.getByID(Strings.parseInt(d[0])), paused);
-            if (Core.settings.getBool("multiplayerpause-syncon" + (paused ? "pause" : "unpause"))) {
-                long since = Time.millis() - lastSyncTime;
-                if (since > 5100) { // Sync now
-                    Call.sendChatMessage("/sync");
-                    lastSyncTime = Time.millis();
-                } else if (Core.settings.getBool("multiplayerpause-schedulesync") && since > 0) { // Schedule a sync as one has taken place recently
-                    Timer.schedule(() -> Call.sendChatMessage("/sync"), (5100 - since) / 1000f);
-                    lastSyncTime = Time.millis() + 5100 - since;
-                }
-
+        handler.register("metrics", "[on/off]", "Show the mod's costs over the last second, or turn dumping them to multiplayerpause-metrics.csv on or off.", args -> {
+            if (args.length > 0) {
+                Core.settings.put("multiplayerpause-metricsdump", args[0].equals("on"));
+                if (!args[0].equals("on")) metrics.flush();
+                Log.info("Metrics dump @.", args[0].equals("on") ? "enabled" : "disabled");
+            } else if (!metrics.enabled) {
+                Log.info("Metrics are off, use 'metrics on' to collect them.");
+            } else {
+                Log.info("Metrics:\n@", metrics.report());
             }
         });
+    }
 
-        // Server receives plans from a client
-        netServer.addPacketHandler("multiplayerpause-syncplans", (p, data) -> {
-            if (state.isMenu() || p == null) return;
-            // Validate data size to prevent spam/crashes
-            if (data.length() > 5000) return; 
-
-            // Update plan for the player on server side? Not strictly necessary for preview, but good for consistency.
-            // p.unit().plans = parsePacket(data); // Optional: update server logic if needed.
-
-            // Broadcast to other clients
-            // Format: "playerID|planData"
-            Call.clientPacketReliable("multiplayerpause-updateplans", p.id + "|" + data);
-        });
+    @Override
+    public boolean inGame() {
+        return !state.isMenu();
+    }
 
-        // Client receives plans from another player
-        netClient.addPacketHandler("multiplayerpause-updateplans", data -> {
-            int splitIndex = data.indexOf("|");
-            if (splitIndex == -1) return;
+    @Override
+    public boolean isPaused() {
+        return state.isPaused();
+    }
 
-            String pidStr = data.substring(0, splitIndex);
-            String plansData = data.substring(splitIndex + 1);
+    @Override
+    public void setPaused(boolean paused) {
+        state.set(paused ? GameState.State.paused : GameState.State.playing);
+    }
 
-            int pid = Strings.parseInt(pidStr);
-            Player p = Groups.player.getByID(pid);
-            if (p != null && p != player && p.unit() != null) {
-                p.unit().plans = parsePacket(plansData);
-            }
-        });
+    @Override
+    public boolean canPause(int player) {
+        Player p = Groups.player.getByID(player);
+        return p != null && (p.admin || Core.settings.getBool("multiplayerpause-allowany"));
     }
 
-    void showToast(Player p, boolean paused) {
-        if (net.server()) Call.clientPacketReliable("multiplayerpause-updatestate", p.id + " " + (paused ? "t" : "f")); // Forward state change to clients
+    @Override
+    public void showToast(int player, boolean paused) {
         if (!Core.settings.getBool("multiplayerpause-toasts")) return;
 
+        Player p = Groups.player.getByID(player);
         Menus.infoToast(Strings.format("@ @ the game.", p == null ? "[lightgray]Unknown player[]" : Strings.stripColors(p.name), paused ? "paused" : "unpaused"), 2f);
     }
-    
-    // Serialization logic
-    // Format: x,y,rotation,blockId,breaking;...
-    String packetString(Queue<BuildPlan> plans) {
-        StringBuilder sb = new StringBuilder();
-        int count = 0;
-        for (BuildPlan p : plans) {
-            if (count++ > 0) sb.append(";");
-            sb.append(p.x).append(",")
-              .append(p.y).append(",")
-              .append(p.rotation).append(",")
-              .append(p.block == null ? -1 : p.block.id).append(",")
-              .append(p.breaking ? 1 : 0);
-              // Limit packet size if needed
-              if (sb.length() > 4000) break;
-        }
-        return sb.toString();
-    }
 
-    Queue<BuildPlan> parsePacket(String data) {
-        Queue<BuildPlan> out = new Queue<>();
-        if (data.isEmpty()) return out;
-
-        String[] parts = data.split(";");
-        for (String part : parts) {
-            String[] props = part.split(",");
-            if (props.length != 5) continue;
-            try {
-                int x = Integer.parseInt(props[0]);
-                int y = Integer.parseInt(props[1]);
-                int rotation = Integer.parseInt(props[2]);
-                short blockId = Short.parseShort(props[3]);
-                boolean breaking = props[4].equals("1");
-
-                Block block = (blockId == -1) ? null : content.block(blockId);
-                
-                BuildPlan plan;
-                if (breaking) {
-                     plan = new BuildPlan(x, y, rotation, block);
-                     plan.breaking = true;
-                } else {
-                    if (block == null) continue; // Skip invalid build plans
-                    plan = new BuildPlan(x, y, rotation, block);
-                }
-                out.add(plan);
-            } catch (Exception e) {
-                // Ignore malformed plans
-            }
+    @Override
+    public void stateReceived(boolean paused) {
+        if (!Core.settings.getBool("multiplayerpause-syncon" + (paused ? "pause" : "unpause"))) return;
+
+        long since = Time.millis() - lastSyncTime;
+        if (since > WorldSync.cooldown) { // Sync now
+            worldSync.request();
+            lastSyncTime = Time.millis();
+        } else if (Core.settings.getBool("multiplayerpause-schedulesync") && since > 0) { // Schedule a sync as one has taken place recently
+            Timer.schedule(worldSync::request, (WorldSync.cooldown - since) / 1000f);
+            lastSyncTime = Time.millis() + WorldSync.cooldown - since;
         }
-        return out;
     }
 }
@@ -0,0 +1,294 @@
+package pauseMod;
+
+import arc.Core;
+import arc.files.Fi;
+import arc.struct.IntMap;
+import arc.struct.ObjectMap;
+import arc.struct.Seq;
+import arc.util.Strings;
+import arc.util.Time;
+
+/**
+ * Counters and nanosecond timers for what the mod costs, rolled over into one-second windows that the overlay
+ * ({@link MetricsOverlay}), the {@code metrics} server command and the dump file read.
+ *
+ * While disabled, {@link #begin()} and the counting methods only read a field, so instrumented code can call them
+ * every frame. Metrics are enabled while the overlay or dumping is turned on.
+ *
+ * The dump is a CSV file in the data directory, {@code multiplayerpause-metrics.csv}, appended to every
+ * {@link #dumpInterval} with a row per metric and window: {@code time_ms,side,kind,name,count,value,max}.
+ * Timers report calls, total and longest nanoseconds, counters their sum, packets their count and bytes.
+ */
+public class Metrics {
+    /** Windows are rolled over this often, in milliseconds. */
+    public static final long window = 1000;
+    /** Milliseconds between appends to the dump file. */
+    public static final long dumpInterval = 10000;
+
+    private static final long off = Long.MIN_VALUE;
+
+    public static class Timer {
+        public final String name;
+        long calls, nanos, max;
+        /** Values of the last complete window. */
+        public long lastCalls, lastNanos, lastMax;
+
+        Timer(String name) {
+            this.name = name;
+        }
+    }
+
+    public static class Counter {
+        public final String name;
+        /** Running total this counter reports the growth of, see {@link #total}, or the value of with {@link #gauge}. */
+        final Total source;
+        final boolean gauge;
+        long value, seen;
+        /** Sum over the last complete window. */
+        public long last;
+
+        Counter(String name, Total source, boolean gauge) {
+            this.name = name;
+            this.source = source;
+            this.gauge = gauge;
+        }
+    }
+
+    /** A running total owned by someone else, e.g. {@link PlanRelay#bytesSent}, reported as its growth per window. */
+    public interface Total {
+        long get();
+    }
+
+    /** Packets and bytes of one packet type or one player, both directions, and time spent handling them. */
+    public static class Traffic {
+        public final String name;
+        long packetsIn, bytesIn, packetsOut, bytesOut, nanos;
+        public long lastPacketsIn, lastBytesIn, lastPacketsOut, lastBytesOut, lastNanos;
+
+        Traffic(String name) {
+            this.name = name;
+        }
+    }
+
+    public boolean enabled;
+    /** Incremented whenever a window is rolled over, so readers know when to refresh. */
+    public int windows;
+
+    private final Seq<Timer> timers = new Seq<>();
+    private final Seq<Counter> counters = new Seq<>();
+    private final ObjectMap<String, Traffic> types = new ObjectMap<>();
+    private final IntMap<Traffic> players = new IntMap<>();
+    private final StringBuilder dump = new StringBuilder();
+    private long windowStart, lastDump;
+
+    public static boolean overlayEnabled() {
+        return Core.settings.getBool("multiplayerpause-metrics", false);
+    }
+
+    public static boolean dumpEnabled() {
+        return Core.settings.getBool("multiplayerpause-metricsdump", false);
+    }
+
+    public Timer timer(String name) {
+        Timer timer = new Timer(name);
+        timers.add(timer);
+        return timer;
+    }
+
+    public Counter counter(String name) {
+        Counter counter = new Counter(name, null, false);
+        counters.add(counter);
+        return counter;
+    }
+
+    /** Reports the growth of {@code source} per window under {@code name}. */
+    public void total(String name, Total source) {
+        counters.add(new Counter(name, source, false));
+    }
+
+    /** Reports the value of {@code source} at the end of each window under {@code name}. */
+    public void gauge(String name, Total source) {
+        counters.add(new Counter(name, source, true));
+    }
+
+    /** @return the start time to pass to {@link #end}, or a marker that makes it do nothing while disabled */
+    public long begin() {
+        return enabled ? Time.nanos() : off;
+    }
+
+    public void end(Timer timer, long start) {
+        if (start == off) return;
+        long time = Time.nanos() - start;
+        timer.calls++;
+        timer.nanos += time;
+        timer.max = Math.max(timer.max, time);
+    }
+
+    public void add(Counter counter, long value) {
+        if (enabled) counter.value += value;
+    }
+
+    /** A packet of {@code type} from {@code player} (-1 for the server) was handled, starting at {@code start}. */
+    public void received(String type, int player, int bytes, long start) {
+        if (start == off) return;
+        long time = Time.nanos() - start;
+        Traffic traffic = traffic(type);
+        traffic.packetsIn++;
+        traffic.bytesIn += bytes;
+        traffic.nanos += time;
+        if (player >= 0) {
+            traffic = traffic(player);
+            traffic.packetsIn++;
+            traffic.bytesIn += bytes;
+            traffic.nanos += time;
+        }
+    }
+
+    /** {@code packets} packets of {@code type} were sent, to {@code player} or to everyone if it is -1. */
+    public void sent(String type, int player, int bytes, int packets) {
+        if (!enabled) return;
+        Traffic traffic = traffic(type);
+        traffic.packetsOut += packets;
+        traffic.bytesOut += (long)bytes * packets;
+        if (player >= 0) {
+            traffic = traffic(player);
+            traffic.packetsOut++;
+            traffic.bytesOut += bytes;
+        }
+    }
+
+    private Traffic traffic(String type) {
+        Traffic traffic = types.get(type);
+        if (traffic == null) types.put(type, traffic = new Traffic(type));
+        return traffic;
+    }
+
+    private Traffic traffic(int player) {
+        Traffic traffic = players.get(player);
+        if (traffic == null) players.put(player, traffic = new Traffic("player " + player));
+        return traffic;
+    }
+
+    public void playerLeft(int player) {
+        players.remove(player);
+    }
+
+    /**
+     * Called every frame: turns metrics on or off with the settings and rolls over the window.
+     * @param side "server" or "client", for the dump
+     */
+    public void update(String side) {
+        boolean enable = overlayEnabled() || dumpEnabled();
+        long now = Time.millis();
+        if (enable && !enabled) {
+            // Start from a clean window so the first one isn't mostly time spent disabled
+            windowStart = lastDump = now;
+            for (Counter counter : counters) {
+                if (counter.source != null) counter.seen = counter.source.get();
+            }
+        }
+        enabled = enable;
+        if (!enabled || now - windowStart < window) return;
+
+        windowStart = now;
+        roll();
+        if (dumpEnabled()) {
+            append(now, side);
+            if (now - lastDump >= dumpInterval) {
+                lastDump = now;
+                flush();
+            }
+        }
+    }
+
+    private void roll() {
+        windows++;
+        for (Timer timer : timers) {
+            timer.lastCalls = timer.calls;
+            timer.lastNanos = timer.nanos;
+            timer.lastMax = timer.max;
+            timer.calls = timer.nanos = timer.max = 0;
+        }
+        for (Counter counter : counters) {
+            if (counter.source != null) {
+                long value = counter.source.get();
+                counter.value = counter.gauge ? value : value - counter.seen;
+                counter.seen = value;
+            }
+            counter.last = counter.value;
+            counter.value = 0;
+        }
+        for (Traffic traffic : types.values()) roll(traffic);
+        for (Traffic traffic : players.values()) roll(traffic);
+    }
+
+    private static void roll(Traffic traffic) {
+        traffic.lastPacketsIn = traffic.packetsIn;
+        traffic.lastBytesIn = traffic.bytesIn;
+        traffic.lastPacketsOut = traffic.packetsOut;
+        traffic.lastBytesOut = traffic.bytesOut;
+        traffic.lastNanos = traffic.nanos;
+        traffic.packetsIn = traffic.bytesIn = traffic.packetsOut = traffic.bytesOut = traffic.nanos = 0;
+    }
+
+    private void append(long now, String side) {
+        for (Timer timer : timers) {
+            if (timer.lastCalls > 0) row(now, side, "timer", timer.name, timer.lastCalls, timer.lastNanos, timer.lastMax);
+        }
+        for (Counter counter : counters) {
+            row(now, side, "counter", counter.name, 1, counter.last, counter.last);
+        }
+        appendTraffic(now, side, types.values());
+        appendTraffic(now, side, players.values());
+    }
+
+    private void appendTraffic(long now, String side, Iterable<Traffic> traffic) {
+        for (Traffic t : traffic) {
+            if (t.lastPacketsIn > 0) row(now, side, "in", t.name, t.lastPacketsIn, t.lastBytesIn, t.lastNanos);
+            if (t.lastPacketsOut > 0) row(now, side, "out", t.name, t.lastPacketsOut, t.lastBytesOut, 0);
+        }
+    }
+
+    private void row(long now, String side, String kind, String name, long count, long value, long max) {
+        dump.append(now).append(',').append(side).append(',').append(kind).append(',').append(name).append(',')
+            .append(count).append(',').append(value).append(',').append(max).append('\n');
+    }
+
+    /** Appends the rows collected so far to the dump file. */
+    public void flush() {
+        if (dump.length() == 0) return;
+        Fi file = Core.settings.getDataDirectory().child("multiplayerpause-metrics.csv");
+        if (!file.exists()) dump.insert(0, "time_ms,side,kind,name,count,value,max\n");
+        file.writeString(dump.toString(), true);
+        dump.setLength(0);
+    }
+
+    /** The last window as readable lines, for the overlay and the server command. */
+    public String report() {
+        StringBuilder out = new StringBuilder();
+        for (Timer timer : timers) {
+            if (timer.lastCalls == 0) continue;
+            out.append(timer.name).append(": ").append(millis(timer.lastNanos / timer.lastCalls)).append(" ms avg, ")
+                .append(millis(timer.lastMax)).append(" ms max, ").append(millis(timer.lastNanos)).append(" ms/s\n");
+        }
+        for (Counter counter : counters) {
+            out.append(counter.name).append(": ").append(counter.last).append(counter.gauge ? "\n" : "/s\n");
+        }
+        reportTraffic(out, types.values());
+        reportTraffic(out, players.values());
+        if (out.length() > 0) out.setLength(out.length() - 1);
+        return out.toString();
+    }
+
+    private static void reportTraffic(StringBuilder out, Iterable<Traffic> traffic) {
+        for (Traffic t : traffic) {
+            if (t.lastPacketsIn == 0 && t.lastPacketsOut == 0) continue;
+            out.append(t.name).append(": in ").append(t.lastPacketsIn).append(" (").append(Strings.autoFixed(t.lastBytesIn / 1024f, 1)).append(" KB, ")
+                .append(millis(t.lastNanos)).append(" ms), out ").append(t.lastPacketsOut).append(" (").append(Strings.autoFixed(t.lastBytesOut / 1024f, 1)).append(" KB)\n");
+        }
+    }
+
+    private static String millis(long nanos) {
+        return Strings.autoFixed(nanos / 1000000f, 2);
+    }
+}
@@ -0,0 +1,42 @@
+package pauseMod;
+
+import arc.graphics.Color;
+import arc.scene.event.Touchable;
+import arc.scene.ui.Label;
+import arc.scene.ui.layout.Table;
+import mindustry.ui.Styles;
+
+import static mindustry.Vars.*;
+
+/** Shows the last window of {@link Metrics} in the top left corner while the overlay setting is on. */
+public class MetricsOverlay {
+    private final Metrics metrics;
+    private final Table table = new Table();
+    private final Label label;
+    private int shownWindow = -1;
+
+    public MetricsOverlay(Metrics metrics) {
+        this.metrics = metrics;
+
+        table.setFillParent(true);
+        table.top().left();
+        table.touchable = Touchable.disabled;
+        Table box = new Table();
+        box.setBackground(Styles.black6);
+        box.margin(6f);
+        label = box.add("").color(Color.lightGray).left().get();
+        label.setFontScale(0.75f);
+        table.add(box).padTop(60f).padLeft(4f);
+        ui.hudGroup.addChild(table);
+    }
+
+    /** Called every frame, only touches the label when a new window was rolled over. */
+    public void update() {
+        table.visible = Metrics.overlayEnabled() && ui.hudfrag.shown;
+        if (!table.visible || metrics.windows == shownWindow) return;
+
+        shownWindow = metrics.windows;
+        String report = metrics.report();
+        label.setText(report.isEmpty() ? "Collecting metrics..." : report);
+    }
+}
@@ -0,0 +1,143 @@
+package pauseMod;
+
+import arc.func.Cons;
+import arc.struct.IntSeq;
+import arc.util.Time;
+import mindustry.gen.Call;
+import mindustry.gen.Groups;
+import mindustry.gen.Player;
+
+import static mindustry.Vars.*;
+
+/** {@link NetBridge} over Mindustry's own server and client, counting every packet in {@link Metrics}. */
+public class MindustryNet implements NetBridge {
+    private final Metrics metrics;
+
+    public MindustryNet(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // String sizes are counted in chars, close enough for the mostly ASCII packets the mod sends
+
+    @Override
+    public void onServer(String type, ServerHandler<String> handler) {
+        netServer.addPacketHandler(type, (p, data) -> {
+            if (p == null) return;
+            long start = metrics.begin();
+            handler.handle(p.id, data);
+            metrics.received(type, p.id, data.length(), start);
+        });
+    }
+
+    @Override
+    public void onServerBinary(String type, ServerHandler<byte[]> handler) {
+        netServer.addBinaryPacketHandler(type, (p, data) -> {
+            if (p == null) return;
+            long start = metrics.begin();
+            handler.handle(p.id, data);
+            metrics.received(type, p.id, data.length, start);
+        });
+    }
+
+    @Override
+    public void onClient(String type, Cons<String> handler) {
+        netClient.addPacketHandler(type, data -> {
+            long start = metrics.begin();
+            handler.get(data);
+            metrics.received(type, -1, data.length(), start);
+        });
+    }
+
+    @Override
+    public void onClientBinary(String type, Cons<byte[]> handler) {
+        netClient.addBinaryPacketHandler(type, data -> {
+            long start = metrics.begin();
+            handler.get(data);
+            metrics.received(type, -1, data.length, start);
+        });
+    }
+
+    @Override
+    public void sendServer(String type, String data) {
+        metrics.sent(type, -1, data.length(), 1);
+        Call.serverPacketReliable(type, data);
+    }
+
+    @Override
+    public void sendServer(String type, byte[] data) {
+        metrics.sent(type, -1, data.length, 1);
+        Call.serverBinaryPacketReliable(type, data);
+    }
+
+    @Override
+    public void send(int player, String type, String data) {
+        Player p = Groups.player.getByID(player);
+        if (p == null || p.con == null) return;
+        metrics.sent(type, player, data.length(), 1);
+        Call.clientPacketReliable(p.con, type, data);
+    }
+
+    @Override
+    public void send(int player, String type, byte[] data) {
+        Player p = Groups.player.getByID(player);
+        if (p == null || p.con == null) return;
+        metrics.sent(type, player, data.length, 1);
+        Call.clientBinaryPacketReliable(p.con, type, data);
+    }
+
+    @Override
+    public void sendServerUnreliable(String type, byte[] data) {
+        metrics.sent(type, -1, data.length, 1);
+        Call.serverBinaryPacketUnreliable(type, data);
+    }
+
+    @Override
+    public void sendUnreliable(int player, String type, byte[] data) {
+        Player p = Groups.player.getByID(player);
+        if (p == null || p.con == null) return;
+        metrics.sent(type, player, data.length, 1);
+        Call.clientBinaryPacketUnreliable(p.con, type, data);
+    }
+
+    @Override
+    public void broadcast(String type, String data) {
+        metrics.sent(type, -1, data.length(), clients());
+        Call.clientPacketReliable(type, data);
+    }
+
+    @Override
+    public void broadcast(String type, byte[] data) {
+        metrics.sent(type, -1, data.length, clients());
+        Call.clientBinaryPacketReliable(type, data);
+    }
+
+    @Override
+    public int localPlayer() {
+        return player == null ? -1 : player.id;
+    }
+
+    @Override
+    public int clients() {
+        return Groups.player.size() - (headless ? 0 : 1);
+    }
+
+    @Override
+    public void players(IntSeq out) {
+        out.clear();
+        // The host's own player has no connection
+        for (Player p : Groups.player) {
+            if (p.con != null) out.add(p.id);
+        }
+    }
+
+    @Override
+    public int team(int player) {
+        Player p = Groups.player.getByID(player);
+        return p == null ? -1 : p.team().id;
+    }
+
+    @Override
+    public long millis() {
+        return Time.millis();
+    }
+}
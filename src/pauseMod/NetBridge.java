@@ -0,0 +1,55 @@
+package pauseMod;
+
+import arc.func.Cons;
+import arc.struct.IntSeq;
+
+/**
+ * The network operations the mod's packet handlers use. Players are referred to by id, so the handlers can run
+ * against Mindustry's net ({@link MindustryNet}) or an in-process stand-in.
+ */
+public interface NetBridge {
+    interface ServerHandler<T> {
+        void handle(int player, T data);
+    }
+
+    void onServer(String type, ServerHandler<String> handler);
+
+    void onServerBinary(String type, ServerHandler<byte[]> handler);
+
+    void onClient(String type, Cons<String> handler);
+
+    void onClientBinary(String type, Cons<byte[]> handler);
+
+    void sendServer(String type, String data);
+
+    void sendServer(String type, byte[] data);
+
+    void send(int player, String type, String data);
+
+    void send(int player, String type, byte[] data);
+
+    /** Like {@link #sendServer(String, byte[])}, but the packet may be lost or overtaken and never holds up others. */
+    void sendServerUnreliable(String type, byte[] data);
+
+    /** Like {@link #send(int, String, byte[])}, but the packet may be lost or overtaken and never holds up others. */
+    void sendUnreliable(int player, String type, byte[] data);
+
+    void broadcast(String type, String data);
+
+    void broadcast(String type, byte[] data);
+
+    /** Id of the local player, or -1 if there is none. */
+    int localPlayer();
+
+    /** Number of clients a broadcast reaches. */
+    int clients();
+
+    /** Replaces the contents of {@code out} with the ids of the connected clients. */
+    void players(IntSeq out);
+
+    /** Team id of a player, or -1 if there is no such player. */
+    int team(int player);
+
+    /** Current time in milliseconds, which the handlers time debouncing and round trips with. */
+    long millis();
+}
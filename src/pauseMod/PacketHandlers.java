@@ -0,0 +1,217 @@
+package pauseMod;
+
+import arc.Core;
+import arc.struct.IntIntMap;
+import arc.util.Strings;
+
+/**
+ * Every packet the mod sends and handles, registered against a {@link NetBridge} so the same handlers run in
+ * game and in the headless simulator.
+ *
+ * Server and client handlers are both registered; which of them fire depends on the side the bridge is on.
+ *
+ * Pause state packets are {@code "player t|f epoch seq"}: the player that changed the state, the new state, an
+ * epoch the server increments with every change so clients can drop stale or reordered states, and the sequence
+ * number of the request that caused it so the requester can time the round trip. Toggle requests that arrive
+ * within the debounce window of a change are collapsed into one change when the window closes.
+ */
+public class PacketHandlers {
+    private final NetBridge net;
+    private final PauseHost host;
+    private final PlanSync planSync;
+    private final PlanRelay planRelay;
+    private final WorldSync worldSync;
+
+    // Server: pause epoch, and toggles collapsed while the debounce window is open
+    private int epoch;
+    private long windowEnd;
+    private boolean pending, target;
+    private int lastRequester;
+    private final IntIntMap collapsedRequests = new IntIntMap();
+    // Server: the game's own toggle of the host's collapsed press, undone on the next update
+    private boolean undoHostToggle, undoTo;
+
+    // Client: newest epoch seen, and the request waiting for its state
+    private int heldEpoch = -1;
+    private int requestSeq, awaitingSeq;
+    private long requestedAt;
+
+    // Statistics since the game started
+    public long toggles, collapsed, staleStates;
+    /** Client: round trip of the last confirmed pause request and a moving average, in milliseconds, -1 until measured. */
+    public long roundTrip = -1;
+    public float roundTripAverage = -1;
+
+    public PacketHandlers(NetBridge net, PauseHost host, PlanSync planSync, PlanRelay planRelay, WorldSync worldSync) {
+        this.net = net;
+        this.host = host;
+        this.planSync = planSync;
+        this.planRelay = planRelay;
+        this.worldSync = worldSync;
+    }
+
+    /** Milliseconds after a pause state change in which further toggles are collapsed. */
+    public static int debounce() {
+        return Core.settings.getInt("multiplayerpause-pausedebouncems", 250);
+    }
+
+    public void register() {
+        net.onServer("multiplayerpause-request", (p, data) -> {
+            if (!host.canPause(p) || !host.inGame()) return;
+            int seq = Strings.parseInt(data, 0);
+
+            if (!windowOpen()) {
+                host.setPaused(!host.isPaused());
+                broadcastState(p, host.isPaused(), seq);
+                return;
+            }
+            collapse(p);
+            collapsedRequests.put(p, seq);
+        });
+        // State changes are forwarded to clients for more responsive pausing (avoids waiting for next stateSnapshot) which should reduce desync (I hope) and allows for toasts
+        net.onClient("multiplayerpause-updatestate", data -> {
+            String[] d = data.split(" ");
+            if (d.length < 2) return;
+            int player = Strings.parseInt(d[0], -1);
+            boolean paused = d[1].equals("t");
+            int epoch = d.length > 2 ? Strings.parseInt(d[2], -1) : -1;
+            int seq = d.length > 3 ? Strings.parseInt(d[3], 0) : 0;
+
+            if (player == net.localPlayer() && seq != 0 && seq == awaitingSeq) {
+                roundTrip = net.millis() - requestedAt;
+                roundTripAverage = roundTripAverage < 0 ? roundTrip : roundTripAverage * 0.8f + roundTrip * 0.2f;
+                awaitingSeq = 0;
+            }
+            // Servers without epochs send every state as new
+            if (epoch >= 0) {
+                if (epoch < heldEpoch) staleStates++;
+                // The same epoch again only confirms a request that was collapsed
+                if (epoch <= heldEpoch) return;
+                heldEpoch = epoch;
+            }
+
+            host.setPaused(paused); // Reflect state change on the client ASAP
+            host.showToast(player, paused);
+            host.stateReceived(paused);
+        });
+
+        // Server receives plan changes from a client (binary, see PlanCodec)
+        net.onServerBinary("multiplayerpause-syncplans", (p, data) -> {
+            if (!host.inGame()) return;
+            // Validate data size to prevent spam/crashes
+            if (data.length > PlanCodec.MAX_PAYLOAD + 64) return;
+
+            planRelay.handleSync(p, data);
+        });
+
+        // Client is missing versions of another player's plans and wants a keyframe
+        net.onServer("multiplayerpause-planresync", (p, data) -> {
+            if (!host.inGame()) return;
+            planRelay.handleResyncRequest(p, data);
+        });
+
+        // Server lost track of our plans (e.g. we reconnected), send them all again
+        net.onClient("multiplayerpause-planresync", data -> planSync.sendKeyframe());
+
+        // Client receives plans from another player
+        net.onClientBinary("multiplayerpause-updateplans", planSync::handleUpdate);
+
+        // Client reported which tiles it sees, so plans elsewhere are only summarized for it
+        net.onServer("multiplayerpause-planview", (p, data) -> {
+            if (data.length() > 64) return;
+            planRelay.handleView(p, data);
+        });
+
+        // Client receives a summary of the plans it isn't sent in detail
+        net.onClientBinary("multiplayerpause-plansummary", planSync::handleSummary);
+
+        // Client sent hashes of its world regions, answer with the regions that differ (see WorldSync)
+        net.onServerBinary("multiplayerpause-worldhashes", (p, data) -> {
+            if (!host.inGame()) return;
+            if (data.length > PlanCodec.MAX_PAYLOAD + 64) return;
+
+            worldSync.handleHashes(p, data);
+        });
+
+        // Client receives the regions of the world that differ from the server's
+        net.onClientBinary("multiplayerpause-worldregions", data -> {
+            if (host.inGame()) worldSync.handleRegions(data);
+        });
+    }
+
+    /** Forgets the held epoch and any collapsed toggles, e.g. when joining another game. */
+    public void reset() {
+        heldEpoch = -1;
+        awaitingSeq = 0;
+        pending = false;
+        undoHostToggle = false;
+        collapsedRequests.clear();
+    }
+
+    /** Server: applies collapsed toggles once the debounce window closes. Called every frame. */
+    public void update() {
+        if (undoHostToggle) {
+            undoHostToggle = false;
+            host.setPaused(undoTo);
+        }
+        if (!pending || net.millis() < windowEnd) return;
+        pending = false;
+
+        if (target != host.isPaused() && host.inGame()) {
+            host.setPaused(target);
+            broadcastState(lastRequester, target, collapsedRequests.remove(lastRequester, 0));
+        }
+        // Everyone else whose toggle was collapsed still gets their request confirmed
+        String state = host.isPaused() ? "t" : "f";
+        for (IntIntMap.Entry e : collapsedRequests) {
+            net.send(e.key, "multiplayerpause-updatestate", e.key + " " + state + " " + epoch + " " + e.value);
+        }
+        collapsedRequests.clear();
+    }
+
+    /** Client: asks the server to toggle the pause state. */
+    public void requestPause() {
+        awaitingSeq = ++requestSeq;
+        requestedAt = net.millis();
+        net.sendServer("multiplayerpause-request", String.valueOf(awaitingSeq));
+    }
+
+    /**
+     * Server: the host pressed pause. The game toggles its own state right after this, so it is forwarded to clients
+     * as the new state, or, inside the debounce window, collapsed like a client's request and the game's toggle undone
+     * on the next update.
+     */
+    public void hostToggled(int player) {
+        if (!windowOpen()) {
+            broadcastState(player, !host.isPaused(), 0);
+            return;
+        }
+        collapse(player);
+        undoHostToggle = true;
+        undoTo = host.isPaused();
+    }
+
+    private boolean windowOpen() {
+        return pending || net.millis() < windowEnd;
+    }
+
+    /** Counts a toggle towards the state applied when the window closes, see {@link #update}. */
+    private void collapse(int player) {
+        target = pending ? !target : !host.isPaused();
+        pending = true;
+        lastRequester = player;
+        collapsed++;
+    }
+
+    private void broadcastState(int player, boolean paused, int seq) {
+        epoch++;
+        toggles++;
+        windowEnd = net.millis() + debounce();
+        net.broadcast("multiplayerpause-updatestate", player + " " + (paused ? "t" : "f") + " " + epoch + " " + seq);
+        host.showToast(player, paused);
+    }
+
+    public String stats() {
+        return Strings.format("@ state changes, @ toggles collapsed", toggles, collapsed);
+    }
+}
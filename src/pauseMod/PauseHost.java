@@ -0,0 +1,20 @@
+package pauseMod;
+
+/** The game state that pause packets read and change, see {@link PacketHandlers}. */
+public interface PauseHost {
+    /** Whether a world is loaded. */
+    boolean inGame();
+
+    boolean isPaused();
+
+    void setPaused(boolean paused);
+
+    /** Server: whether the player may pause and unpause the game. */
+    boolean canPause(int player);
+
+    /** Tells the local player that {@code player} paused or unpaused the game. */
+    void showToast(int player, boolean paused);
+
+    /** Client: the pause state changed, used to request a world sync if the user wants one. */
+    void stateReceived(boolean paused);
+}
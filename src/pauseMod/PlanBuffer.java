@@ -0,0 +1,153 @@
+package pauseMod;
+
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer with the varint helpers used by {@link PlanCodec}.
+ * One instance is either written to or wrapped around incoming data and read from, never both,
+ * and is reused between packets so steady-state syncing does not allocate.
+ */
+public class PlanBuffer {
+    public byte[] bytes;
+    public int position;
+    public int limit;
+
+    public PlanBuffer() {
+        this(256);
+    }
+
+    public PlanBuffer(int capacity) {
+        bytes = new byte[capacity];
+    }
+
+    /** Clears the buffer for writing. */
+    public PlanBuffer reset() {
+        position = 0;
+        limit = 0;
+        return this;
+    }
+
+    /** Points the buffer at received data for reading. */
+    public PlanBuffer wrap(byte[] data) {
+        bytes = data;
+        position = 0;
+        limit = data.length;
+        return this;
+    }
+
+    public boolean hasRemaining() {
+        return position < limit;
+    }
+
+    /** Copies the written bytes into a new array for sending. */
+    public byte[] toBytes() {
+        return Arrays.copyOf(bytes, position);
+    }
+
+    private void ensure(int extra) {
+        if (position + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, position + extra));
+        }
+    }
+
+    public void writeByte(int value) {
+        ensure(1);
+        bytes[position++] = (byte)value;
+    }
+
+    public void writeBytes(byte[] data, int offset, int length) {
+        ensure(length);
+        System.arraycopy(data, offset, bytes, position, length);
+        position += length;
+    }
+
+    /** Writes an unsigned LEB128 varint. */
+    public void writeVarInt(int value) {
+        ensure(5);
+        while ((value & ~0x7f) != 0) {
+            bytes[position++] = (byte)((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[position++] = (byte)value;
+    }
+
+    /** Bytes {@link #writeVarInt} takes for the value. */
+    public static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /** Bytes {@link #writeZigZag} takes for the value. */
+    public static int zigZagSize(int value) {
+        return varIntSize((value << 1) ^ (value >> 31));
+    }
+
+    /** Writes a big-endian int, for values such as hashes that don't shrink as varints. */
+    public void writeInt(int value) {
+        ensure(4);
+        bytes[position++] = (byte)(value >>> 24);
+        bytes[position++] = (byte)(value >>> 16);
+        bytes[position++] = (byte)(value >>> 8);
+        bytes[position++] = (byte)value;
+    }
+
+    public void writeLong(long value) {
+        writeInt((int)(value >>> 32));
+        writeInt((int)value);
+    }
+
+    /** Writes a signed value as a zigzag varint so small negative deltas stay small. */
+    public void writeZigZag(int value) {
+        writeVarInt((value << 1) ^ (value >> 31));
+    }
+
+    /** Reserves three bytes for a varint that is patched later with {@link #patchVarInt3}. */
+    public int reserveVarInt3() {
+        ensure(3);
+        int at = position;
+        position += 3;
+        return at;
+    }
+
+    /** Writes a padded three byte varint, which {@link #readVarInt()} reads like any other. */
+    public void patchVarInt3(int at, int value) {
+        bytes[at] = (byte)((value & 0x7f) | 0x80);
+        bytes[at + 1] = (byte)(((value >>> 7) & 0x7f) | 0x80);
+        bytes[at + 2] = (byte)((value >>> 14) & 0x7f);
+    }
+
+    public int readByte() {
+        if (position >= limit) throw new IllegalStateException("Truncated plan payload");
+        return bytes[position++] & 0xff;
+    }
+
+    public int readVarInt() {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IllegalStateException("Malformed varint in plan payload");
+    }
+
+    public int readInt() {
+        if (position + 4 > limit) throw new IllegalStateException("Truncated plan payload");
+        int value = (bytes[position] & 0xff) << 24 | (bytes[position + 1] & 0xff) << 16 | (bytes[position + 2] & 0xff) << 8 | bytes[position + 3] & 0xff;
+        position += 4;
+        return value;
+    }
+
+    public long readLong() {
+        return (long)readInt() << 32 | readInt() & 0xffffffffL;
+    }
+
+    public int readZigZag() {
+        int raw = readVarInt();
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+}
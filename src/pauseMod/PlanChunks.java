@@ -0,0 +1,148 @@
+package pauseMod;
+
+/**
+ * Splits {@link PlanCodec} messages that don't fit in one packet into chunks, and puts them back together.
+ *
+ * A chunk is:
+ * <pre>
+ * byte   FORMAT_CHUNK
+ * varint transfer id, unique per sender
+ * varint sequence number, from 0
+ * varint chunk count
+ * bytes  the next part of the message, until the end of the chunk
+ * </pre>
+ * Chunks of a transfer are sent in order over a reliable channel, so a receiver only ever holds one transfer per
+ * sender: a chunk of a different transfer or a whole message means the sender moved on to a newer version of
+ * its queue, and the old transfer is dropped.
+ */
+public final class PlanChunks {
+    public static final int FORMAT_CHUNK = 2;
+    /** Message bytes per chunk, leaving room for the chunk header and batch framing within {@link PlanCodec#MAX_PAYLOAD}. */
+    public static final int CHUNK_SIZE = PlanCodec.MAX_PAYLOAD - 64;
+    /** Largest message that is transferred at all, which bounds what a receiver buffers per sender. */
+    public static final int MAX_TRANSFER = 128 * 1024;
+    /** Milliseconds without a chunk after which a transfer is given up. */
+    public static final long TIMEOUT = 5000;
+
+    /** Results of {@link #accept}. */
+    public static final int PARTIAL = 0, COMPLETE = 1, DROPPED = 2;
+
+    private PlanChunks() {
+    }
+
+    /** Whether {@code data[offset]} starts a chunk rather than a whole message. */
+    public static boolean isChunk(byte[] data, int offset) {
+        return offset < data.length && data[offset] == FORMAT_CHUNK;
+    }
+
+    public static int count(int length) {
+        return (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    }
+
+    /** Writes chunk {@code sequence} of the {@code length} byte message in {@code message}. @return its size */
+    public static int writeChunk(PlanBuffer out, int transfer, int sequence, byte[] message, int length) {
+        int start = out.position;
+        int offset = sequence * CHUNK_SIZE;
+        out.writeByte(FORMAT_CHUNK);
+        out.writeVarInt(transfer);
+        out.writeVarInt(sequence);
+        out.writeVarInt(count(length));
+        out.writeBytes(message, offset, Math.min(CHUNK_SIZE, length - offset));
+        return out.position - start;
+    }
+
+    /**
+     * Adds the chunk in {@code in} (read until its limit) to the sender's reassembly.
+     * @return {@link #COMPLETE} once the last chunk arrived, after which {@link Reassembly#message()} holds the
+     * message, {@link #PARTIAL} while more are expected, or {@link #DROPPED} if the chunk can't be used
+     */
+    public static int accept(PlanBuffer in, Reassembly reassembly, long now) {
+        int transfer, sequence, count;
+        try {
+            if (in.readByte() != FORMAT_CHUNK) return DROPPED;
+            transfer = in.readVarInt();
+            sequence = in.readVarInt();
+            count = in.readVarInt();
+        } catch (IllegalStateException e) {
+            return DROPPED;
+        }
+        if (count <= 0 || count > count(MAX_TRANSFER) || sequence < 0 || sequence >= count) return DROPPED;
+
+        if (!reassembly.active() || transfer != reassembly.transfer) {
+            // We missed the start of this transfer, e.g. because we joined while it was being sent
+            if (sequence != 0) {
+                reassembly.cancel();
+                return DROPPED;
+            }
+            reassembly.start(transfer, count);
+        }
+        int length = in.limit - in.position;
+        if (sequence != reassembly.next || count != reassembly.count || reassembly.data.position + length > MAX_TRANSFER) {
+            reassembly.cancel();
+            return DROPPED;
+        }
+
+        reassembly.data.writeBytes(in.bytes, in.position, length);
+        in.position = in.limit;
+        reassembly.next++;
+        reassembly.updated = now;
+        if (reassembly.next < count) return PARTIAL;
+
+        reassembly.active = false;
+        return COMPLETE;
+    }
+
+    /** The chunks received so far of one sender's current transfer. */
+    public static class Reassembly {
+        final PlanBuffer data = new PlanBuffer(0);
+        private final PlanBuffer view = new PlanBuffer(0);
+        int transfer, count, next;
+        /** Chunks received when the receiver last showed what had arrived, see {@link PlanDecoder}. */
+        int previewed;
+        long updated;
+        boolean active;
+
+        public boolean active() {
+            return active;
+        }
+
+        void start(int transfer, int count) {
+            this.transfer = transfer;
+            this.count = count;
+            next = previewed = 0;
+            data.reset();
+            active = true;
+        }
+
+        /** Drops the transfer in progress. @return whether there was one */
+        public boolean cancel() {
+            boolean was = active;
+            active = false;
+            release();
+            return was;
+        }
+
+        /** Whether the transfer in progress has not had a chunk for {@link #TIMEOUT}. */
+        public boolean expired(long now) {
+            return active && now - updated > TIMEOUT;
+        }
+
+        /**
+         * The received part of the message, for reading. Whole once {@link #accept} returned {@link #COMPLETE}, and
+         * valid until the next chunk is accepted or {@link #release()} is called.
+         */
+        public PlanBuffer message() {
+            view.bytes = data.bytes;
+            view.position = 0;
+            view.limit = data.position;
+            return view;
+        }
+
+        /** Empties the buffer once a transfer was applied, freeing it if it grew big, so idle senders cost nothing. */
+        public void release() {
+            if (active) return;
+            if (data.bytes.length > PlanCodec.MAX_PAYLOAD) data.bytes = new byte[0];
+            data.reset();
+        }
+    }
+}
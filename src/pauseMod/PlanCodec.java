@@ -0,0 +1,447 @@
+package pauseMod;
+
+import arc.struct.LongSeq;
+
+/**
+ * Binary plan sync format.
+ *
+ * Plans are handled as packed longs (see {@link #pack}) so diffing and comparing queues never touches
+ * {@code BuildPlan} objects. A message is:
+ * <pre>
+ * byte   FORMAT
+ * byte   flags (FLAG_KEYFRAME, FLAG_UPDATE)
+ * varint version
+ * varint baseVersion (all but keyframes, must match the version of the receiver's base)
+ * ops until the end of the message:
+ *   OP_CLEAR
+ *   OP_REMOVE varint index, varint count
+ *   OP_ADD    varint index, varint count, then per plan: zigzag dx, zigzag dy, varint (block + 1) << 3 | rotation << 1 | breaking
+ *   OP_DEFINE long hash, varint count, then plans like OP_ADD
+ *   OP_STAMP  varint index, long hash, zigzag offsetX, zigzag offsetY, byte turns
+ * </pre>
+ * Coordinates inside an OP_ADD are deltas from the previous plan of the same op, so a dragged conveyor line
+ * costs about three bytes per plan and appending one plan to a queue costs about fifteen bytes in total.
+ *
+ * OP_DEFINE adds a schematic body to the receiver's {@link StampCache} without changing the queue, and OP_STAMP
+ * inserts a cached body turned and moved into place, so a schematic that was placed before costs about twenty
+ * bytes however big it is. Keyframes never use them, so they always apply on their own.
+ *
+ * Keyframes and deltas are sent reliably and become the receiver's base ({@link PlanState#base}). Small changes
+ * in between are sent unreliably as updates: a delta from the base to the latest queue, so any one of them is
+ * enough and a lost one costs nothing. Receivers drop updates older than what they hold or against another base,
+ * and the sender follows a run of updates with a reliable delta within {@link #CHECKPOINT_INTERVAL}. Updates
+ * never use schematics, which readers have to see in the order they were written.
+ */
+public final class PlanCodec {
+    public static final int FORMAT = 1;
+    public static final int FLAG_KEYFRAME = 1;
+    public static final int FLAG_UPDATE = 2;
+
+    public static final int OP_CLEAR = 0;
+    public static final int OP_ADD = 1;
+    public static final int OP_REMOVE = 2;
+    public static final int OP_DEFINE = 3;
+    public static final int OP_STAMP = 4;
+
+    /** Largest message sent in one packet; bigger messages are split up, see {@link PlanChunks}. */
+    public static final int MAX_PAYLOAD = 4000;
+    /** Largest queue a receiver accepts for a single player. */
+    public static final int MAX_PLANS = 16384;
+    /** Largest unreliable update, which keeps it to one datagram; bigger changes are sent reliably. */
+    public static final int MAX_UPDATE = 1024;
+    /** Milliseconds after the last reliable message by which unreliable updates are followed by another one. */
+    public static final long CHECKPOINT_INTERVAL = 1000;
+
+    /** Results of {@link #apply}. */
+    public static final int APPLIED = 0, STALE = 1, INVALID = 2, MISSING = 3, SKIPPED = 4;
+
+    private PlanCodec() {
+    }
+
+    public static long pack(int x, int y, int rotation, int blockId, boolean breaking) {
+        return (x & 0xffffL)
+            | (y & 0xffffL) << 16
+            | ((blockId + 1) & 0xffffL) << 32
+            | (rotation & 3L) << 48
+            | (breaking ? 1L << 50 : 0L);
+    }
+
+    public static int x(long plan) {
+        return (short)plan;
+    }
+
+    public static int y(long plan) {
+        return (short)(plan >>> 16);
+    }
+
+    /** Block id, or -1 for plans without a block. */
+    public static int block(long plan) {
+        return (int)((plan >>> 32) & 0xffff) - 1;
+    }
+
+    public static int rotation(long plan) {
+        return (int)((plan >>> 48) & 3);
+    }
+
+    public static boolean breaking(long plan) {
+        return ((plan >>> 50) & 1) != 0;
+    }
+
+    /** 64-bit FNV-1a over packed plans, for telling queues and schematic bodies apart by content. */
+    public static long hash(LongSeq plans) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < plans.size; i++) {
+            long plan = plans.items[i];
+            for (int b = 0; b < 64; b += 8) {
+                h ^= (plan >>> b) & 0xff;
+                h *= 0x100000001b3L;
+            }
+        }
+        return h;
+    }
+
+    /** Whether the message at {@code offset} is an unreliable update. */
+    public static boolean isUpdate(byte[] data, int offset) {
+        return data.length > offset + 1 && data[offset] == FORMAT && (data[offset + 1] & FLAG_UPDATE) != 0;
+    }
+
+    private static void writeHeader(PlanBuffer out, int flags, int baseVersion, int version) {
+        out.writeByte(FORMAT);
+        out.writeByte(flags);
+        out.writeVarInt(version);
+        if ((flags & FLAG_KEYFRAME) == 0) out.writeVarInt(baseVersion);
+    }
+
+    /**
+     * Writes a keyframe replacing the whole queue, with as many of the plans as keep the message within
+     * {@code maxBytes} of the start of {@code out}.
+     * @return how many plans were written
+     */
+    public static int writeKeyframe(PlanBuffer out, int version, LongSeq plans, int maxBytes) {
+        writeHeader(out, FLAG_KEYFRAME, 0, version);
+        out.writeByte(OP_CLEAR);
+        if (plans.size == 0) return 0;
+        return writeAdd(out, 0, plans, 0, plans.size, maxBytes);
+    }
+
+    /** How many plans {@link #writeKeyframe} would write into an empty buffer, worked out without writing them. */
+    public static int keyframePlans(int version, LongSeq plans, int maxBytes) {
+        if (plans.size == 0) return 0;
+        // Format, flags, version, clear, then the add's op, index and reserved count
+        int size = 2 + PlanBuffer.varIntSize(version) + 1 + 2 + 3;
+        int prevX = 0, prevY = 0;
+        for (int i = 0; i < plans.size; i++) {
+            long plan = plans.items[i];
+            size += planSize(plan, prevX, prevY);
+            if (size > maxBytes) return i;
+            prevX = x(plan);
+            prevY = y(plan);
+        }
+        return plans.size;
+    }
+
+    /**
+     * Writes the change from {@code from} to {@code to} as a single remove/add splice around their
+     * common prefix and suffix, which covers appending, deleting and replacing a run of plans.
+     */
+    public static void writeDelta(PlanBuffer out, int baseVersion, int version, LongSeq from, LongSeq to) {
+        writeDelta(out, baseVersion, version, from, to, null);
+    }
+
+    /**
+     * Like {@link #writeDelta(PlanBuffer, int, int, LongSeq, LongSeq)}, but added plans that look like a schematic
+     * are written as a stamp, preceded by their body if {@code stamps} says the receiver doesn't have it yet.
+     * Call {@link StampCache#commit} once the message is sent or {@link StampCache#rollback} if it isn't.
+     */
+    public static void writeDelta(PlanBuffer out, int baseVersion, int version, LongSeq from, LongSeq to, StampCache stamps) {
+        writeHeader(out, 0, baseVersion, version);
+        writeChange(out, from, to, stamps);
+    }
+
+    /** Writes an unreliable update from the receiver's base {@code from} to {@code to}, see {@link #FLAG_UPDATE}. */
+    public static void writeUpdate(PlanBuffer out, int baseVersion, int version, LongSeq from, LongSeq to) {
+        writeHeader(out, FLAG_UPDATE, baseVersion, version);
+        writeChange(out, from, to, null);
+    }
+
+    /**
+     * Writes an update from the base of {@code sent} to {@code to}, unless a reliable delta should be sent instead:
+     * when there is no base yet, the update doesn't fit in {@link #MAX_UPDATE}, or most of it repeats what updates
+     * since the base already carried.
+     * @param scratch space for measuring the change since the last update
+     * @return whether an update was written
+     */
+    public static boolean writeUpdate(PlanBuffer out, PlanBuffer scratch, PlanState sent, int version, LongSeq to) {
+        if (sent.baseVersion == 0) return false;
+        out.reset();
+        writeUpdate(out, sent.baseVersion, version, sent.base, to);
+        if (out.position > MAX_UPDATE) return false;
+        if (!sent.updated()) return true;
+
+        scratch.reset();
+        writeChange(scratch, sent.plans, to, null);
+        // Otherwise the reliable delta that has to follow the updates anyway is cheaper
+        return out.position <= scratch.position * 3 / 2 + 8;
+    }
+
+    private static void writeChange(PlanBuffer out, LongSeq from, LongSeq to, StampCache stamps) {
+        if (to.size == 0) {
+            if (from.size > 0) out.writeByte(OP_CLEAR);
+            return;
+        }
+
+        int max = Math.min(from.size, to.size);
+        int prefix = 0;
+        while (prefix < max && from.items[prefix] == to.items[prefix]) prefix++;
+        int suffix = 0;
+        while (suffix < max - prefix && from.items[from.size - 1 - suffix] == to.items[to.size - 1 - suffix]) suffix++;
+
+        int removed = from.size - prefix - suffix;
+        int added = to.size - prefix - suffix;
+        if (removed > 0) {
+            if (removed == from.size) {
+                out.writeByte(OP_CLEAR);
+            } else {
+                out.writeByte(OP_REMOVE);
+                out.writeVarInt(prefix);
+                out.writeVarInt(removed);
+            }
+        }
+        if (added > 0) {
+            if (stamps != null && stamps.describe(to, prefix, added)) {
+                writeStamp(out, prefix, stamps);
+            } else {
+                writeAdd(out, prefix, to, prefix, prefix + added, Integer.MAX_VALUE);
+            }
+        }
+    }
+
+    private static void writeStamp(PlanBuffer out, int index, StampCache stamps) {
+        if (!stamps.contains(stamps.hash)) {
+            out.writeByte(OP_DEFINE);
+            out.writeLong(stamps.hash);
+            writePlans(out, stamps.body, 0, stamps.body.size, Integer.MAX_VALUE);
+            stamps.define(stamps.hash, stamps.body);
+        }
+        out.writeByte(OP_STAMP);
+        out.writeVarInt(index);
+        out.writeLong(stamps.hash);
+        out.writeZigZag(stamps.offsetX);
+        out.writeZigZag(stamps.offsetY);
+        out.writeByte(stamps.turns);
+    }
+
+    private static int writeAdd(PlanBuffer out, int index, LongSeq plans, int start, int end, int maxBytes) {
+        out.writeByte(OP_ADD);
+        out.writeVarInt(index);
+        return writePlans(out, plans, start, end, maxBytes);
+    }
+
+    private static int writePlans(PlanBuffer out, LongSeq plans, int start, int end, int maxBytes) {
+        int countAt = out.reserveVarInt3();
+        int prevX = 0, prevY = 0, count = 0;
+        for (int i = start; i < end; i++, count++) {
+            long plan = plans.items[i];
+            // Stop before the plan that would cross the limit, not after it
+            if (out.position + planSize(plan, prevX, prevY) > maxBytes) break;
+            int x = x(plan), y = y(plan);
+            out.writeZigZag(x - prevX);
+            out.writeZigZag(y - prevY);
+            out.writeVarInt(code(plan));
+            prevX = x;
+            prevY = y;
+        }
+        out.patchVarInt3(countAt, count);
+        return count;
+    }
+
+    /** Bytes {@link #writePlans} takes for a plan following one at the given tile. */
+    private static int planSize(long plan, int prevX, int prevY) {
+        return PlanBuffer.zigZagSize(x(plan) - prevX) + PlanBuffer.zigZagSize(y(plan) - prevY) + PlanBuffer.varIntSize(code(plan));
+    }
+
+    private static int code(long plan) {
+        return (block(plan) + 1) << 3 | rotation(plan) << 1 | (breaking(plan) ? 1 : 0);
+    }
+
+    /** Applies a message that doesn't use stamps, see {@link #apply(PlanBuffer, PlanState, StampCache)}. */
+    public static int apply(PlanBuffer in, PlanState state) {
+        return apply(in, state, null);
+    }
+
+    /**
+     * Applies a message to {@code state}. The state is left untouched unless the whole message is valid.
+     * @param stamps schematic bodies the sender may refer to, and where the ones it defines are kept
+     * @return {@link #APPLIED}, {@link #STALE} if it is a delta against a base the state does not hold,
+     * {@link #SKIPPED} if it is an update that is out of date or arrived before its base, {@link #MISSING} if it
+     * refers to a body that isn't cached, or {@link #INVALID} if it is malformed
+     */
+    public static int apply(PlanBuffer in, PlanState state, StampCache stamps) {
+        try {
+            if (in.readByte() != FORMAT) return INVALID;
+            int flags = in.readByte();
+            boolean keyframe = (flags & FLAG_KEYFRAME) != 0, update = (flags & FLAG_UPDATE) != 0;
+            int version = in.readVarInt();
+            if (!keyframe) {
+                int baseVersion = in.readVarInt();
+                // Updates that were overtaken or whose base we don't hold do nothing, nor do any after the state was dropped
+                if (update && (baseVersion != state.baseVersion || state.baseVersion == 0 || version - state.version <= 0)) return SKIPPED;
+                if (baseVersion != state.baseVersion) return STALE;
+            }
+
+            int result = readOps(in, state, stamps, false);
+            if (result != APPLIED) return result;
+            if (update) {
+                state.commit(version);
+            } else {
+                state.commitBase(version);
+            }
+            return APPLIED;
+        } catch (IllegalStateException e) {
+            return INVALID;
+        }
+    }
+
+    /**
+     * Only updates {@code stamps} with the bodies a message defines and uses, for messages that aren't applied:
+     * the local player's own, or ones that came out stale. Keeps the cache the same as the writer thinks it is.
+     */
+    public static void learn(PlanBuffer in, StampCache stamps) {
+        try {
+            if (in.readByte() != FORMAT) return;
+            boolean keyframe = (in.readByte() & FLAG_KEYFRAME) != 0;
+            in.readVarInt();
+            if (!keyframe) in.readVarInt();
+
+            while (in.hasRemaining()) {
+                int op = in.readByte();
+                if (op == OP_REMOVE) {
+                    in.readVarInt();
+                    in.readVarInt();
+                } else if (op == OP_ADD) {
+                    in.readVarInt();
+                    for (int i = in.readVarInt(); i > 0; i--) {
+                        in.readZigZag();
+                        in.readZigZag();
+                        in.readVarInt();
+                    }
+                } else if (op == OP_DEFINE) {
+                    long hash = in.readLong();
+                    int count = in.readVarInt();
+                    if (count < 0 || count > StampCache.MAX_PLANS) return;
+                    LongSeq body = new LongSeq(count);
+                    readPlans(in, body, count);
+                    if (hash(body) == hash) stamps.put(hash, body);
+                } else if (op == OP_STAMP) {
+                    in.readVarInt();
+                    stamps.get(in.readLong(), true);
+                    in.readZigZag();
+                    in.readZigZag();
+                    in.readByte();
+                } else if (op != OP_CLEAR) {
+                    return;
+                }
+            }
+        } catch (IllegalStateException e) {
+            // Nothing more to learn from a malformed message
+        }
+    }
+
+    /**
+     * Decodes as much of a message as has arrived on top of the base, without committing anything.
+     * Used to show a chunked transfer while it streams in.
+     * @return the queue so far, valid until the state is next changed, or null if the message doesn't apply
+     */
+    public static LongSeq preview(PlanBuffer in, PlanState state, StampCache stamps) {
+        try {
+            if (in.readByte() != FORMAT) return null;
+            boolean keyframe = (in.readByte() & FLAG_KEYFRAME) != 0;
+            in.readVarInt();
+            if (!keyframe && in.readVarInt() != state.baseVersion) return null;
+        } catch (IllegalStateException e) {
+            return null;
+        }
+        return readOps(in, state, stamps, true) == APPLIED ? state.work : null;
+    }
+
+    /** Applies ops to the base in the state's work buffer. If {@code partial}, the input ending early is not an error. */
+    private static int readOps(PlanBuffer in, PlanState state, StampCache stamps, boolean partial) {
+        LongSeq work = state.begin();
+        try {
+            while (in.hasRemaining()) {
+                int op = in.readByte();
+                if (op == OP_CLEAR) {
+                    work.clear();
+                } else if (op == OP_REMOVE) {
+                    int index = in.readVarInt(), count = in.readVarInt();
+                    if (index < 0 || index > work.size || count < 0 || count > work.size - index) return INVALID;
+                    System.arraycopy(work.items, index + count, work.items, index, work.size - index - count);
+                    work.size -= count;
+                } else if (op == OP_ADD) {
+                    int index = in.readVarInt(), count = in.readVarInt();
+                    if (index < 0 || index > work.size || count < 0 || count > MAX_PLANS - work.size) return INVALID;
+                    work = readAdd(in, state, index, count);
+                } else if (op == OP_DEFINE) {
+                    long hash = in.readLong();
+                    int count = in.readVarInt();
+                    if (count < 0 || count > StampCache.MAX_PLANS) return INVALID;
+                    LongSeq body = state.spare;
+                    body.clear();
+                    readPlans(in, body, count);
+                    if (hash(body) != hash) return INVALID;
+                    // A preview sees the same body again with every chunk, only the whole message counts as a use
+                    if (stamps != null && (!partial || stamps.get(hash, false) == null)) stamps.put(hash, body);
+                } else if (op == OP_STAMP) {
+                    int index = in.readVarInt();
+                    long hash = in.readLong();
+                    int offsetX = in.readZigZag(), offsetY = in.readZigZag(), turns = in.readByte();
+                    LongSeq body = stamps == null ? null : stamps.get(hash, !partial);
+                    if (body == null) return MISSING;
+                    if (index < 0 || index > work.size || turns > 3 || body.size > MAX_PLANS - work.size) return INVALID;
+                    work = insertStamp(state, stamps, body, index, turns, offsetX, offsetY);
+                } else {
+                    return INVALID;
+                }
+            }
+        } catch (IllegalStateException e) {
+            if (!partial) throw e;
+        }
+        return APPLIED;
+    }
+
+    private static LongSeq readAdd(PlanBuffer in, PlanState state, int index, int count) {
+        LongSeq from = state.work, to = state.spare;
+        to.clear();
+        for (int i = 0; i < index; i++) to.add(from.items[i]);
+        try {
+            readPlans(in, to, count);
+        } finally {
+            // Also done when the input ends early, so a partial decode keeps the plans after the insertion point
+            for (int i = index; i < from.size; i++) to.add(from.items[i]);
+            state.work = to;
+            state.spare = from;
+        }
+        return to;
+    }
+
+    private static void readPlans(PlanBuffer in, LongSeq to, int count) {
+        int x = 0, y = 0;
+        for (int i = 0; i < count; i++) {
+            x += in.readZigZag();
+            y += in.readZigZag();
+            int meta = in.readVarInt();
+            to.add(pack(x, y, (meta >>> 1) & 3, (meta >>> 3) - 1, (meta & 1) != 0));
+        }
+    }
+
+    private static LongSeq insertStamp(PlanState state, StampCache stamps, LongSeq body, int index, int turns, int offsetX, int offsetY) {
+        LongSeq from = state.work, to = state.spare;
+        to.clear();
+        for (int i = 0; i < index; i++) to.add(from.items[i]);
+        stamps.place(body, turns, offsetX, offsetY, to);
+        for (int i = index; i < from.size; i++) to.add(from.items[i]);
+        state.work = to;
+        state.spare = from;
+        return to;
+    }
+}
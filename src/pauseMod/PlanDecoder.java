@@ -0,0 +1,282 @@
+package pauseMod;
+
+import arc.func.Cons;
+import arc.func.Func;
+import arc.struct.IntMap;
+import arc.struct.LongSeq;
+import arc.struct.Queue;
+import arc.util.Log;
+import mindustry.entities.units.BuildPlan;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+/**
+ * Decodes relayed plan batches off the game thread for {@link PlanSync}.
+ *
+ * Everything but the mailboxes and the resync queue belongs to the decode thread: packets, resets and expiry are
+ * all handed to the executor, which must run tasks one at a time and in order. Every player has a mailbox that
+ * the decode thread is the only writer of and that holds just the latest decoded queue, so a burst of updates for
+ * one player costs the game thread a single reference swap.
+ */
+class PlanDecoder {
+    private static final long resyncCooldown = 2000;
+    /** A transfer in progress is previewed at most this many times, each decoding all of it that arrived. */
+    private static final int previewSteps = 8;
+    private static final LongSeq none = new LongSeq(0);
+
+    /** A player's plans, decoded and ready to show. */
+    static class Decoded {
+        final int pid, version, generation;
+        /** Number of the last batch decoded before this, see {@link #submit}. */
+        final int batch;
+        /** Owned by the game thread once taken from the mailbox. */
+        final LongSeq plans;
+        /** Plans for the player's unit, or null if the queue builder doesn't make them. */
+        final Queue<BuildPlan> queue;
+
+        Decoded(int pid, int version, int generation, int batch, LongSeq plans, Queue<BuildPlan> queue) {
+            this.pid = pid;
+            this.version = version;
+            this.generation = generation;
+            this.batch = batch;
+            this.plans = plans;
+            this.queue = queue;
+        }
+    }
+
+    private final Executor executor;
+    private final Func<LongSeq, Queue<BuildPlan>> queues;
+    private final Cons<Queue<BuildPlan>> unused;
+    private final LongSupplier clock;
+
+    // Decode thread only
+    private final IntMap<PlanState> remote = new IntMap<>();
+    private final IntMap<PlanChunks.Reassembly> transfers = new IntMap<>();
+    private final PlanBuffer in = new PlanBuffer(0);
+    /** Schematic bodies the server sent with each player's plans. */
+    private final IntMap<StampCache> stamps = new IntMap<>();
+    private final int[] blockSizes;
+    private int localPlayer = -1, generation, batch;
+
+    // Shared with the game thread
+    private final ConcurrentHashMap<Integer, AtomicReference<Decoded>> mailboxes = new ConcurrentHashMap<>();
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private final ConcurrentLinkedQueue<Integer> resyncs = new ConcurrentLinkedQueue<>();
+    /** Players forgotten whose decode state isn't dropped yet, with how many times; their results are discarded. */
+    private final ConcurrentHashMap<Integer, Integer> forgotten = new ConcurrentHashMap<>();
+    /** Decoded queues that were replaced in their mailbox before the game thread took them. */
+    volatile long superseded;
+
+    private final Runnable expire = this::expire;
+
+    /**
+     * @param queues builds unit plans from packed plans, called on the decode thread
+     * @param unused takes back queues that were replaced before they were shown, called on the decode thread
+     * @param blockSizes size in tiles of each block, by block id, or null for the loaded content's
+     * @param clock current time in milliseconds, called on the decode thread
+     */
+    PlanDecoder(Executor executor, Func<LongSeq, Queue<BuildPlan>> queues, Cons<Queue<BuildPlan>> unused, int[] blockSizes, LongSupplier clock) {
+        this.executor = executor;
+        this.queues = queues;
+        this.unused = unused;
+        this.clock = clock;
+        this.blockSizes = blockSizes;
+    }
+
+    /**
+     * Any thread: decodes a batch relayed by the server, ignoring any of the local player's own plans.
+     * @param batch numbers the batches in the order they are submitted in
+     */
+    void submit(byte[] data, int localPlayer, int batch) {
+        executor.execute(() -> {
+            this.localPlayer = localPlayer;
+            this.batch = batch;
+            decode(data);
+        });
+    }
+
+    /** Drops everything, e.g. after leaving a game. Results decoded before are discarded by {@link #take}. */
+    void reset(int generation) {
+        executor.execute(() -> {
+            this.generation = generation;
+            remote.clear();
+            transfers.clear();
+            stamps.clear();
+        });
+    }
+
+    /**
+     * Drops everything received for a player. Batches submitted before may still be decoding, so their results are
+     * discarded until the decode thread got to this, and only then is the mailbox removed.
+     */
+    void forget(int pid) {
+        forgotten.merge(pid, 1, Integer::sum);
+        executor.execute(() -> {
+            remote.remove(pid);
+            transfers.remove(pid);
+            stamps.remove(pid);
+            AtomicReference<Decoded> mailbox = mailboxes.remove(pid);
+            Decoded left = mailbox == null ? null : mailbox.getAndSet(null);
+            if (left != null && left.queue != null) unused.get(left.queue);
+            forgotten.computeIfPresent(pid, (key, count) -> count == 1 ? null : count - 1);
+        });
+    }
+
+    /** Drops a player's plans and shows none, in order with the batches submitted before. */
+    void clear(int pid) {
+        executor.execute(() -> {
+            remote.remove(pid);
+            transfers.remove(pid);
+            stamps.remove(pid);
+            publish(pid, none, 0);
+        });
+    }
+
+    /** Gives up on transfers that stopped arriving. */
+    void scheduleExpire() {
+        executor.execute(expire);
+    }
+
+    /**
+     * Game thread: hands the latest decoded queue of every player that has a new one to {@code cons}, and ones
+     * decoded before the last reset or for players forgotten since to {@code stale}.
+     */
+    void take(int generation, Cons<Decoded> cons, Cons<Decoded> stale) {
+        if (!pending.getAndSet(false)) return;
+        for (AtomicReference<Decoded> mailbox : mailboxes.values()) {
+            Decoded decoded = mailbox.getAndSet(null);
+            if (decoded == null) continue;
+            if (decoded.generation == generation && !forgotten.containsKey(decoded.pid)) {
+                cons.get(decoded);
+            } else {
+                stale.get(decoded);
+            }
+        }
+    }
+
+    /** Game thread: the next player whose plans need a keyframe, or null. */
+    Integer pollResync() {
+        return resyncs.poll();
+    }
+
+    private void decode(byte[] data) {
+        in.wrap(data);
+        try {
+            while (in.hasRemaining()) {
+                int pid = in.readVarInt();
+                int length = in.readVarInt();
+                int end = in.position + length;
+                if (length < 0 || end > data.length) return;
+
+                in.limit = end;
+                if (pid != localPlayer) applyUpdate(pid);
+                in.position = end;
+                in.limit = data.length;
+            }
+        } catch (IllegalStateException e) {
+            // Ignore malformed batches
+        } catch (RuntimeException e) {
+            Log.err(e);
+        }
+    }
+
+    private void applyUpdate(int pid) {
+        PlanState state = remote.get(pid);
+        if (state == null) remote.put(pid, state = new PlanState());
+        PlanChunks.Reassembly transfer = transfers.get(pid);
+        StampCache stamps = this.stamps.get(pid);
+        if (stamps == null) this.stamps.put(pid, stamps = new StampCache(StampCache.PLAYER_CAPACITY, blockSizes));
+
+        PlanBuffer message = in;
+        if (PlanChunks.isChunk(in.bytes, in.position)) {
+            if (transfer == null) transfers.put(pid, transfer = new PlanChunks.Reassembly());
+
+            boolean wasActive = transfer.active();
+            int chunk = PlanChunks.accept(in, transfer, clock.getAsLong());
+            if (chunk == PlanChunks.DROPPED) {
+                // The transfer can't be completed anymore, go back to what we had and ask for all of it
+                if (wasActive) publish(pid, state.plans, state.version);
+                requestResync(pid, state);
+                return;
+            }
+            if (chunk == PlanChunks.PARTIAL) {
+                // Fill in the preview as chunks arrive instead of waiting for the whole transfer. Each preview
+                // decodes everything received so far, so only make one every few chunks and once the last was shown.
+                if (transfer.next - transfer.previewed >= (transfer.count + previewSteps - 1) / previewSteps && !waiting(pid)) {
+                    transfer.previewed = transfer.next;
+                    LongSeq partial = PlanCodec.preview(transfer.message(), state, stamps);
+                    if (partial != null) publish(pid, partial, state.version);
+                }
+                return;
+            }
+            message = transfer.message();
+        } else if (transfer != null && !PlanCodec.isUpdate(in.bytes, in.position) && transfer.cancel()) {
+            // A whole message means the server moved on from the transfer in progress. Updates may be late instead.
+            publish(pid, state.plans, state.version);
+        }
+
+        // Every watcher is sent the same schematics in the same order, whether or not the message applies
+        int start = message.position;
+        int result = PlanCodec.apply(message, state, stamps);
+        if (result == PlanCodec.STALE) {
+            message.position = start;
+            PlanCodec.learn(message, stamps);
+        }
+        if (transfer != null) transfer.release();
+
+        if (result == PlanCodec.APPLIED) {
+            publish(pid, state.plans, state.version);
+        } else if (result == PlanCodec.STALE || result == PlanCodec.MISSING) {
+            // A keyframe never refers to schematics, so it also covers ones we joined too late for or dropped
+            requestResync(pid, state);
+        }
+    }
+
+    private void expire() {
+        long now = clock.getAsLong();
+        for (IntMap.Entry<PlanChunks.Reassembly> entry : transfers) {
+            if (!entry.value.expired(now)) continue;
+            entry.value.cancel();
+            PlanState state = remote.get(entry.key);
+            if (state == null) continue;
+            publish(entry.key, state.plans, state.version);
+            requestResync(entry.key, state);
+        }
+    }
+
+    private void requestResync(int pid, PlanState state) {
+        long now = clock.getAsLong();
+        if (now - state.resyncRequested <= resyncCooldown) return;
+        state.resyncRequested = now;
+        resyncs.add(pid);
+    }
+
+    /** Whether the player's mailbox holds a result the game thread hasn't taken yet. */
+    private boolean waiting(int pid) {
+        AtomicReference<Decoded> mailbox = mailboxes.get(pid);
+        return mailbox != null && mailbox.get() != null;
+    }
+
+    /** Copies the plans, since the decode thread keeps reusing its own, and puts them in the player's mailbox. */
+    private void publish(int pid, LongSeq plans, int version) {
+        if (forgotten.containsKey(pid)) return;
+        LongSeq copy = new LongSeq(Math.max(plans.size, 1));
+        copy.addAll(plans.items, 0, plans.size);
+        Decoded decoded = new Decoded(pid, version, generation, batch, copy, queues.get(copy));
+
+        AtomicReference<Decoded> mailbox = mailboxes.get(pid);
+        if (mailbox == null) mailboxes.put(pid, mailbox = new AtomicReference<>());
+        // Whoever swaps a result out of the mailbox owns it, so a replaced queue never reached the game thread
+        Decoded replaced = mailbox.getAndSet(decoded);
+        if (replaced != null) {
+            superseded++;
+            if (replaced.queue != null) unused.get(replaced.queue);
+        }
+        pending.set(true);
+    }
+}
@@ -0,0 +1,321 @@
+package pauseMod;
+
+import arc.struct.IntIntMap;
+import arc.struct.IntMap;
+import arc.struct.IntSeq;
+import arc.struct.LongSeq;
+import arc.struct.Seq;
+
+import static mindustry.Vars.*;
+
+/**
+ * Grid of 16x16 tile chunks holding every remote player's plans, in the packed form of {@link PlanCodec}.
+ *
+ * It is updated per player whenever that player's plans arrive, and answers "plans in this rectangle" by only
+ * looking at the chunks that can overlap the query, so drawing doesn't have to walk every player's queue.
+ * Updates only touch the plans that changed: the old and new queue are compared from both ends, which finds
+ * the usual edits (plans added or removed in one place, a cleared queue) without hashing either, and only the
+ * plans in between are taken out of and put into their chunks.
+ *
+ * Each chunk also keeps a hash of the plans in it, so a cached rendering of the chunk can tell whether it is
+ * still current without comparing the plans themselves.
+ */
+public class PlanIndex {
+    public static final int chunkShift = 4;
+
+    private final IntMap<Chunk> chunks = new IntMap<>();
+    /** How many plans each player has in each chunk, by chunk key. */
+    private final IntMap<IntIntMap> playerChunks = new IntMap<>();
+    private final Seq<Chunk> freeChunks = new Seq<>();
+    private final int[] blockSizes;
+    private final int maxSize;
+    private int size;
+
+    // Statistics
+    /** Plans taken out of or put into chunks by updates, and plans updates left alone because they didn't change. */
+    public long changed, unchanged;
+
+    public interface Visitor {
+        void visit(int owner, long plan);
+    }
+
+    static class Chunk {
+        final LongSeq plans = new LongSeq();
+        final IntSeq owners = new IntSeq();
+        /** Sum of {@link #mix} over the plans, so adding and removing a plan are both O(1). */
+        long hash;
+    }
+
+    /** @param blockSizes size in tiles of each block, by block id */
+    public PlanIndex(int[] blockSizes) {
+        this.blockSizes = blockSizes;
+        int max = 1;
+        for (int s : blockSizes) max = Math.max(max, s);
+        maxSize = max;
+    }
+
+    public static PlanIndex fromContent() {
+        return new PlanIndex(contentBlockSizes());
+    }
+
+    /** Size in tiles of each loaded block, by block id. */
+    public static int[] contentBlockSizes() {
+        int[] sizes = new int[content.blocks().size];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = content.blocks().get(i).size;
+        }
+        return sizes;
+    }
+
+    /** Size in tiles of each block, by block id. */
+    public int[] blockSizes() {
+        return blockSizes;
+    }
+
+    /** Number of plans in the index. */
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        for (Chunk chunk : chunks.values()) {
+            chunk.plans.clear();
+            chunk.owners.clear();
+            chunk.hash = 0;
+            freeChunks.add(chunk);
+        }
+        chunks.clear();
+        playerChunks.clear();
+        size = 0;
+    }
+
+    /** Replaces everything indexed for {@code owner} with {@code plans}. */
+    public void update(int owner, LongSeq plans) {
+        remove(owner);
+        for (int i = 0; i < plans.size; i++) {
+            add(owner, plans.items[i]);
+        }
+        changed += plans.size;
+    }
+
+    /**
+     * Changes what is indexed for {@code owner} from {@code previous}, which must be what was indexed for them, to
+     * {@code plans}, leaving the plans both queues start and end with in place.
+     */
+    public void update(int owner, LongSeq previous, LongSeq plans) {
+        int common = Math.min(previous.size, plans.size);
+        int start = 0;
+        while (start < common && previous.items[start] == plans.items[start]) start++;
+        int end = 0;
+        while (end < common - start && previous.items[previous.size - 1 - end] == plans.items[plans.size - 1 - end]) end++;
+
+        for (int i = start; i < previous.size - end; i++) {
+            remove(owner, previous.items[i]);
+        }
+        for (int i = start; i < plans.size - end; i++) {
+            add(owner, plans.items[i]);
+        }
+        changed += previous.size - end - start + plans.size - end - start;
+        unchanged += start + end;
+    }
+
+    private void add(int owner, long plan) {
+        int key = key(PlanCodec.x(plan) >> chunkShift, PlanCodec.y(plan) >> chunkShift);
+        Chunk chunk = chunks.get(key);
+        if (chunk == null) {
+            chunk = freeChunks.isEmpty() ? new Chunk() : freeChunks.pop();
+            chunks.put(key, chunk);
+        }
+        chunk.plans.add(plan);
+        chunk.owners.add(owner);
+        chunk.hash += mix(plan);
+        size++;
+
+        IntIntMap counts = playerChunks.get(owner);
+        if (counts == null) playerChunks.put(owner, counts = new IntIntMap());
+        counts.put(key, counts.get(key, 0) + 1);
+    }
+
+    private void remove(int owner, long plan) {
+        int key = key(PlanCodec.x(plan) >> chunkShift, PlanCodec.y(plan) >> chunkShift);
+        Chunk chunk = chunks.get(key);
+        if (chunk == null) return;
+        for (int i = chunk.plans.size - 1; i >= 0; i--) {
+            if (chunk.plans.items[i] != plan || chunk.owners.items[i] != owner) continue;
+
+            // Order within a chunk doesn't matter, so the last plan takes its place
+            int last = chunk.plans.size - 1;
+            chunk.plans.items[i] = chunk.plans.items[last];
+            chunk.owners.items[i] = chunk.owners.items[last];
+            chunk.plans.size = last;
+            chunk.owners.size = last;
+            chunk.hash -= mix(plan);
+            size--;
+            if (last == 0) free(key, chunk);
+
+            IntIntMap counts = playerChunks.get(owner);
+            int count = counts.get(key, 0) - 1;
+            if (count > 0) {
+                counts.put(key, count);
+            } else {
+                counts.remove(key, 0);
+            }
+            return;
+        }
+    }
+
+    /** Removes all of {@code owner}'s plans. */
+    public void remove(int owner) {
+        IntIntMap counts = playerChunks.get(owner);
+        if (counts == null) return;
+
+        for (IntIntMap.Entry e : counts) {
+            Chunk chunk = chunks.get(e.key);
+            if (chunk == null) continue;
+
+            int kept = 0;
+            for (int j = 0; j < chunk.plans.size; j++) {
+                if (chunk.owners.items[j] == owner) {
+                    chunk.hash -= mix(chunk.plans.items[j]);
+                    continue;
+                }
+                chunk.plans.items[kept] = chunk.plans.items[j];
+                chunk.owners.items[kept] = chunk.owners.items[j];
+                kept++;
+            }
+            size -= chunk.plans.size - kept;
+            chunk.plans.size = kept;
+            chunk.owners.size = kept;
+            if (kept == 0) free(e.key, chunk);
+        }
+        counts.clear();
+    }
+
+    private void free(int key, Chunk chunk) {
+        chunk.hash = 0;
+        chunks.remove(key);
+        freeChunks.add(chunk);
+    }
+
+    /** Fills {@code out} with the players that have plans in the index. */
+    public void owners(IntSeq out) {
+        out.clear();
+        for (IntMap.Entry<IntIntMap> entry : playerChunks) {
+            if (entry.value.size > 0) out.add(entry.key);
+        }
+    }
+
+    /** Forgets a player entirely, e.g. when they left. */
+    public void forget(int owner) {
+        remove(owner);
+        playerChunks.remove(owner);
+    }
+
+    /** Visits every plan whose footprint overlaps the inclusive tile rectangle. */
+    public void query(int minX, int minY, int maxX, int maxY, Visitor visitor) {
+        // Plans are filed by their origin tile, so look far enough out to catch the biggest blocks
+        int margin = maxSize / 2 + 1;
+        int minCX = (minX - margin) >> chunkShift, maxCX = (maxX + margin) >> chunkShift;
+        int minCY = (minY - margin) >> chunkShift, maxCY = (maxY + margin) >> chunkShift;
+
+        if ((long)(maxCX - minCX + 1) * (maxCY - minCY + 1) > chunks.size) {
+            // Zoomed far out: cheaper to check every chunk that exists than every chunk coordinate
+            for (IntMap.Entry<Chunk> entry : chunks) {
+                int cx = chunkX(entry.key), cy = chunkY(entry.key);
+                if (cx >= minCX && cx <= maxCX && cy >= minCY && cy <= maxCY) {
+                    visit(entry.value, minX, minY, maxX, maxY, visitor);
+                }
+            }
+        } else {
+            for (int cx = minCX; cx <= maxCX; cx++) {
+                for (int cy = minCY; cy <= maxCY; cy++) {
+                    Chunk chunk = chunks.get(key(cx, cy));
+                    if (chunk != null) visit(chunk, minX, minY, maxX, maxY, visitor);
+                }
+            }
+        }
+    }
+
+    private void visit(Chunk chunk, int minX, int minY, int maxX, int maxY, Visitor visitor) {
+        for (int i = 0; i < chunk.plans.size; i++) {
+            long plan = chunk.plans.items[i];
+            int block = PlanCodec.block(plan);
+            int size = block >= 0 && block < blockSizes.length ? blockSizes[block] : 1;
+            // Same footprint as Block.offset / Tile.getLinkedTiles
+            int x = PlanCodec.x(plan) - (size - 1) / 2, y = PlanCodec.y(plan) - (size - 1) / 2;
+            if (x + size - 1 >= minX && x <= maxX && y + size - 1 >= minY && y <= maxY) {
+                visitor.visit(chunk.owners.items[i], plan);
+            }
+        }
+    }
+
+    /**
+     * Fills {@code out} with the keys of the chunks holding plans whose footprint can overlap the inclusive tile
+     * rectangle, the same chunks {@link #query} looks at.
+     */
+    public void chunks(int minX, int minY, int maxX, int maxY, IntSeq out) {
+        out.clear();
+        int margin = maxSize / 2 + 1;
+        int minCX = (minX - margin) >> chunkShift, maxCX = (maxX + margin) >> chunkShift;
+        int minCY = (minY - margin) >> chunkShift, maxCY = (maxY + margin) >> chunkShift;
+
+        if ((long)(maxCX - minCX + 1) * (maxCY - minCY + 1) > chunks.size) {
+            for (IntMap.Entry<Chunk> entry : chunks) {
+                int cx = chunkX(entry.key), cy = chunkY(entry.key);
+                if (cx >= minCX && cx <= maxCX && cy >= minCY && cy <= maxCY) out.add(entry.key);
+            }
+        } else {
+            for (int cx = minCX; cx <= maxCX; cx++) {
+                for (int cy = minCY; cy <= maxCY; cy++) {
+                    int key = key(cx, cy);
+                    if (chunks.containsKey(key)) out.add(key);
+                }
+            }
+        }
+    }
+
+    /** Visits every plan filed in the chunk, i.e. with its origin tile in it. */
+    public void chunk(int key, Visitor visitor) {
+        Chunk chunk = chunks.get(key);
+        if (chunk == null) return;
+        for (int i = 0; i < chunk.plans.size; i++) {
+            visitor.visit(chunk.owners.items[i], chunk.plans.items[i]);
+        }
+    }
+
+    /** Number of plans filed in the chunk. */
+    public int count(int key) {
+        Chunk chunk = chunks.get(key);
+        return chunk == null ? 0 : chunk.plans.size;
+    }
+
+    /** Hash of the plans filed in the chunk, which changes whenever they do. 0 when there are none. */
+    public long hash(int key) {
+        Chunk chunk = chunks.get(key);
+        return chunk == null ? 0 : chunk.hash;
+    }
+
+    /** Size in tiles of the biggest block. */
+    public int maxSize() {
+        return maxSize;
+    }
+
+    private static int key(int cx, int cy) {
+        return (cx & 0xffff) | (cy << 16);
+    }
+
+    public static int chunkX(int key) {
+        return (short)key;
+    }
+
+    public static int chunkY(int key) {
+        return key >> 16;
+    }
+
+    /** Spreads a plan's bits over the whole long (splitmix64 finalizer), so sums of different plan sets rarely collide. */
+    private static long mix(long plan) {
+        plan = (plan ^ (plan >>> 30)) * 0xbf58476d1ce4e5b9L;
+        plan = (plan ^ (plan >>> 27)) * 0x94d049bb133111ebL;
+        return plan ^ (plan >>> 31);
+    }
+}
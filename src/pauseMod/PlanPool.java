@@ -0,0 +1,128 @@
+package pauseMod;
+
+import arc.struct.IntSeq;
+import arc.struct.LongSeq;
+import arc.struct.Queue;
+import arc.struct.Seq;
+import arc.util.pooling.Pool;
+import mindustry.entities.units.BuildPlan;
+import mindustry.world.Block;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static mindustry.Vars.*;
+
+/**
+ * Recycles the queues and plans {@link PlanSync} puts on other players' units, so a stream of updates doesn't
+ * allocate a new queue and a plan per entry every time.
+ *
+ * Queues are filled on the decode thread, which owns the pools. Queues taken off a unit are retired on the game
+ * thread and kept in quarantine for {@link #quarantineFrames} frames before they go back, in case the engine still
+ * holds one of their plans for this frame's building or drawing. Plans the engine started working on are dropped
+ * instead of reused, as are queues that grew too large to be worth keeping.
+ */
+class PlanPool {
+    static final int quarantineFrames = 3;
+    /** Queues that held more plans than this are left to the garbage collector rather than kept at that size. */
+    static final int maxQueueSize = 4096;
+    static final int maxFreePlans = PlanCodec.MAX_PLANS * 2, maxFreeQueues = 64;
+
+    // Decode thread only
+    private final Pool<BuildPlan> plans = new Pool<BuildPlan>(64, maxFreePlans) {
+        @Override
+        protected BuildPlan newObject() {
+            allocated++;
+            return new BuildPlan();
+        }
+    };
+    private final Pool<Queue<BuildPlan>> queues = new Pool<Queue<BuildPlan>>(8, maxFreeQueues) {
+        @Override
+        protected Queue<BuildPlan> newObject() {
+            return new Queue<>();
+        }
+    };
+
+    // Game thread only
+    private final Seq<Queue<BuildPlan>> quarantine = new Seq<>();
+    private final IntSeq retiredAt = new IntSeq();
+    private int frame;
+
+    /** Queues out of quarantine, waiting for the decode thread to take them back. */
+    private final ConcurrentLinkedQueue<Queue<BuildPlan>> released = new ConcurrentLinkedQueue<>();
+
+    /** Plans created because the pool was empty, plans reused and plans dropped because the engine had used them. */
+    volatile long allocated, reused, dropped;
+
+    /** Decode thread: a queue with a plan for each valid packed plan. */
+    Queue<BuildPlan> obtain(LongSeq packed) {
+        reclaim();
+
+        Queue<BuildPlan> out = queues.obtain();
+        out.ensureCapacity(packed.size);
+        int free = plans.getFree();
+        for (int i = 0; i < packed.size; i++) {
+            long plan = packed.items[i];
+            int blockId = PlanCodec.block(plan);
+            Block block = blockId == -1 ? null : content.block(blockId);
+            boolean breaking = PlanCodec.breaking(plan);
+            if (block == null && !breaking) continue; // Skip invalid build plans
+
+            BuildPlan result = plans.obtain().set(PlanCodec.x(plan), PlanCodec.y(plan), PlanCodec.rotation(plan), block);
+            result.breaking = breaking;
+            result.animScale = 0f;
+            out.add(result);
+        }
+        reused += Math.min(free, out.size);
+        return out;
+    }
+
+    /** Decode thread: takes back a queue that was never shown, e.g. one a newer update replaced. */
+    void discard(Queue<BuildPlan> queue) {
+        free(queue);
+    }
+
+    /** Game thread: a queue that was taken off a unit, returned to the pool once it is out of quarantine. */
+    void retire(Queue<BuildPlan> queue) {
+        quarantine.add(queue);
+        retiredAt.add(frame);
+    }
+
+    /** Game thread: called once a frame to let queues out of quarantine. */
+    void update() {
+        frame++;
+        int done = 0;
+        while (done < quarantine.size && frame - retiredAt.items[done] >= quarantineFrames) {
+            released.add(quarantine.get(done));
+            done++;
+        }
+        if (done == 0) return;
+        quarantine.removeRange(0, done - 1);
+        retiredAt.removeRange(0, done - 1);
+    }
+
+    /** Game thread: forgets queues in quarantine, e.g. after leaving a game. */
+    void clear() {
+        quarantine.clear();
+        retiredAt.clear();
+    }
+
+    private void reclaim() {
+        for (Queue<BuildPlan> queue = released.poll(); queue != null; queue = released.poll()) {
+            free(queue);
+        }
+    }
+
+    private void free(Queue<BuildPlan> queue) {
+        boolean keep = queue.size <= maxQueueSize;
+        for (BuildPlan plan : queue) {
+            // Started, stuck or partly built plans may still be tied to the engine's building state
+            if (plan.initialized || plan.stuck || plan.progress > 0f) {
+                dropped++;
+                continue;
+            }
+            plans.free(plan);
+        }
+        queue.clear();
+        if (keep) queues.free(queue);
+    }
+}
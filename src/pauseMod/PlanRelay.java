@@ -0,0 +1,740 @@
+package pauseMod;
+
+import arc.Core;
+import arc.struct.IntIntMap;
+import arc.struct.IntMap;
+import arc.struct.IntSeq;
+import arc.struct.IntSet;
+import arc.struct.LongSeq;
+import arc.util.Strings;
+
+/**
+ * Server side of plan sync.
+ *
+ * Incoming changes are applied to a per-player copy of the latest queue instead of being relayed right away.
+ * Every flush interval the server sends each client one batched packet holding a delta from what clients were
+ * last sent to the latest queue of every player that changed, so a player dragging out plans costs one packet
+ * per flush rather than one per frame per client. Each player also has a token bucket that limits how many bytes
+ * of their plans are sent per second, counting every watcher a message goes to, so it bounds what the host
+ * uploads for them; players over budget simply stay dirty and are merged into a later flush. Another bucket limits
+ * what a player may send us, so a client spamming plan packets doesn't cost the server decoding them.
+ *
+ * With {@code multiplayerpause-planunreliable} on, small changes are sent unreliably as updates against the last
+ * reliable message ({@link PlanCodec#FLAG_UPDATE}), in a batch of their own, so they never hold up the pause state
+ * on a lossy connection. A player's updates are followed by a reliable delta within
+ * {@link PlanCodec#CHECKPOINT_INTERVAL}, so clients that lost some still catch up. Players send theirs the same
+ * way; updates that arrive out of order are dropped.
+ *
+ * Deltas too big for one packet (e.g. a large schematic) are sent as a chunked transfer, see {@link PlanChunks},
+ * a few chunks per flush as the player's budget allows. If the player changes their queue in the meantime, the
+ * transfer is finished unless starting over with a new delta is cheaper.
+ *
+ * Plans only go to the clients that want them in detail, the player's watchers: teammates, unless
+ * {@code multiplayerpause-planteamonly} is off, and of those only the ones whose reported view
+ * ({@link #handleView}) is near the plans; clients that never reported one watch every teammate. A client that
+ * starts watching a player is sent a keyframe of their plans first, e.g. when it joins. Teammates that don't watch
+ * a player get a summary of their plans instead, how many there are and where, on
+ * {@code multiplayerpause-plansummary}, which also tells them to drop the detailed plans they had.
+ *
+ * Schematics players placed before are sent as references to their body ({@link StampCache}); the server keeps
+ * the bodies players sent it and, separately for each player, which bodies it sent their watchers, who all see
+ * them in the same order and so have cached them too.
+ *
+ * The per-player copies are the server's record of everyone's plans, and a change that leaves a queue the same as
+ * what clients already have, e.g. a player re-sending their queue after a resync, is not sent at all. Entries are
+ * dropped when their player leaves.
+ *
+ * Batched packet format: repeated {varint playerID, varint length, PlanCodec message or PlanChunks chunk}.
+ * Summary packet format: repeated {varint playerID, varint count, and unless count is 0: zigzag minX, zigzag minY,
+ * varint width - 1, varint height - 1}, in tiles.
+ */
+public class PlanRelay {
+    private static final long resyncCooldown = 1000;
+    private static final long emptyHash = PlanCodec.hash(new LongSeq(0));
+    /** Tiles watched plans may move past a client's view before it stops watching them, so they don't flicker. */
+    static final int viewMargin = 8;
+    /**
+     * Milliseconds plans have to stay away from a client's view before it stops watching them, since starting to
+     * watch again costs a keyframe, and between summary updates of one player.
+     */
+    static final long unwatchDelay = 3000, summaryInterval = 1000;
+    /**
+     * Bytes a player may send us at once, enough for a whole chunked transfer, on top of {@link #inboundLimit} per
+     * second. Every packet also counts {@link #packetCost} bytes, so floods of tiny packets run out too.
+     */
+    static final int inboundBurst = PlanChunks.MAX_TRANSFER + PlanCodec.MAX_PAYLOAD * 2, packetCost = 64;
+
+    private final NetBridge net;
+    private final int[] blockSizes;
+    private final IntMap<Entry> entries = new IntMap<>();
+    private final IntMap<Viewer> viewers = new IntMap<>();
+    /** Bodies players sent us, shared since players often place each other's schematics. */
+    private final StampCache stamps;
+    private final PlanBuffer message = new PlanBuffer(), scratch = new PlanBuffer();
+    private final PlanBuffer in = new PlanBuffer(0);
+    private final IntSeq players = new IntSeq();
+    private long lastFlush;
+    private int nextTransfer, flushes;
+    private boolean teamOnly = true, unreliable;
+    private int inboundLimit = inboundLimit();
+
+    // Statistics since the server started
+    public long packetsReceived, packetsSent, packetsSaved, bytesSent, throttled, transfers, canceled, duplicates, snapshots;
+    /** Packets of updates sent unreliably, and updates received out of order. */
+    public long updatesSent, skipped;
+    /** Packets dropped unread because their sender was over the inbound limit. */
+    public long rejected;
+    /** Messages not sent to clients that don't watch the player, and summaries sent instead. */
+    public long filtered, summaries;
+    // Schematic statistics of players that left
+    private long leftStampHits, leftStampMisses;
+
+    static class Entry {
+        /** Latest queue received from the player. */
+        final PlanState received = new PlanState();
+        /** Queue that clients were last sent, and its base they were sent reliably. */
+        final PlanState broadcast = new PlanState();
+        /** When the first update after the base was sent. */
+        long updatedSince;
+        /** Chunks of a transfer being received from the player. */
+        final PlanChunks.Reassembly incoming = new PlanChunks.Reassembly();
+        /** Outgoing chunked transfer, and the queue clients hold once it completes. */
+        final PlanState sending = new PlanState();
+        /** Content hashes of the received queue and of the one clients hold or are being sent. */
+        long receivedHash = emptyHash, shownHash = emptyHash;
+        /** Where the received queue and the one clients hold or are being sent are. */
+        final Bounds receivedBounds = new Bounds(), shownBounds = new Bounds();
+        /** Clients that hold the player's plans in detail. */
+        final IntSet watchers = new IntSet();
+        /** Watchers that were sent a keyframe of {@link #sending} and skip the rest of the outgoing transfer. */
+        final IntSet caughtUp = new IntSet();
+        /** Flush at which the plans left each watcher's view. */
+        final IntIntMap away = new IntIntMap();
+        /** Bodies the watchers were sent. */
+        final StampCache stamps;
+        byte[] outgoing;
+        int transfer, nextChunk;
+        boolean dirty;
+        float tokens;
+        /** Bytes the player may still send us, and when that was last refilled. */
+        float inbound = inboundBurst;
+        long inboundRefilled;
+        int merged, team;
+        /** Changes with {@link #shownBounds}, at most every {@link #summaryInterval}, so clients are sent summaries when it did. */
+        int summaryVersion;
+        boolean summaryChanged;
+        long summaryUpdated;
+
+        Entry(int[] blockSizes) {
+            stamps = new StampCache(StampCache.PLAYER_CAPACITY, blockSizes);
+        }
+
+        /** Bytes of the outgoing transfer that were not sent yet. */
+        int remaining() {
+            return outgoing == null ? 0 : outgoing.length - nextChunk * PlanChunks.CHUNK_SIZE;
+        }
+
+        /** Clients now hold, or are being sent, the received queue. */
+        void shown() {
+            shownHash = receivedHash;
+            shownBounds.set(receivedBounds);
+            summaryChanged = true;
+        }
+
+        void endTransfer() {
+            outgoing = null;
+            caughtUp.clear();
+        }
+
+        /** Takes a received packet out of the inbound bucket, if it has room. */
+        boolean receive(int bytes, long now, int limit) {
+            inbound = Math.min(inboundBurst, inbound + (now - inboundRefilled) * limit / 1000f);
+            inboundRefilled = now;
+            if (inbound < bytes + packetCost) return false;
+            inbound -= bytes + packetCost;
+            return true;
+        }
+    }
+
+    /** A connected client, and what it was sent. */
+    static class Viewer {
+        final int id;
+        int team;
+        /** Tiles the client reported seeing, if it did. */
+        boolean hasView;
+        int minX, minY, maxX, maxY;
+        /** Summary version last sent for every player it has a summary of, see {@link Entry#summaryVersion}. */
+        final IntIntMap summarized = new IntIntMap();
+        final PlanBuffer batch = new PlanBuffer(), updates = new PlanBuffer(), summaries = new PlanBuffer();
+        /** Received packets that the batch being built merges. */
+        int merged;
+        boolean connected;
+
+        Viewer(int id) {
+            this.id = id;
+        }
+    }
+
+    /** How many plans a queue has and which tiles they span. */
+    static class Bounds {
+        int count, minX, minY, maxX, maxY;
+
+        void set(LongSeq plans) {
+            count = plans.size;
+            minX = minY = Integer.MAX_VALUE;
+            maxX = maxY = Integer.MIN_VALUE;
+            for (int i = 0; i < plans.size; i++) {
+                int x = PlanCodec.x(plans.items[i]), y = PlanCodec.y(plans.items[i]);
+                minX = Math.min(minX, x);
+                minY = Math.min(minY, y);
+                maxX = Math.max(maxX, x);
+                maxY = Math.max(maxY, y);
+            }
+        }
+
+        void set(Bounds other) {
+            count = other.count;
+            minX = other.minX;
+            minY = other.minY;
+            maxX = other.maxX;
+            maxY = other.maxY;
+        }
+
+        /** Whether any plan is within {@code margin} tiles of the viewer's view. */
+        boolean near(Viewer viewer, int margin) {
+            return count > 0 && minX <= viewer.maxX + margin && maxX >= viewer.minX - margin
+                && minY <= viewer.maxY + margin && maxY >= viewer.minY - margin;
+        }
+    }
+
+    public PlanRelay(NetBridge net) {
+        this(net, null);
+    }
+
+    /** @param blockSizes size in tiles of each block, by block id, or null for the loaded content's */
+    public PlanRelay(NetBridge net, int[] blockSizes) {
+        this.net = net;
+        this.blockSizes = blockSizes;
+        stamps = new StampCache(StampCache.CAPACITY * 4, blockSizes);
+    }
+
+    public void reset() {
+        entries.clear();
+        viewers.clear();
+        stamps.clear();
+    }
+
+    /** Milliseconds between flushes. */
+    public static int flushInterval() {
+        return Core.settings.getInt("multiplayerpause-planflushms", 100);
+    }
+
+    /** Bytes per second of plan updates broadcast for each player. */
+    public static int budget() {
+        return Core.settings.getInt("multiplayerpause-planbudget", 48) * 1024;
+    }
+
+    /** Bytes per second of plans a player may send the server before their packets are dropped unread. */
+    public static int inboundLimit() {
+        return Core.settings.getInt("multiplayerpause-planinbound", 32) * 1024;
+    }
+
+    /** Whether small plan changes are sent unreliably, see {@link PlanCodec#FLAG_UPDATE}. */
+    public static boolean unreliableUpdates() {
+        return Core.settings.getBool("multiplayerpause-planunreliable", false);
+    }
+
+    /** Whether players only get their teammates' plans. */
+    public static boolean teamOnly() {
+        return Core.settings.getBool("multiplayerpause-planteamonly", true);
+    }
+
+    private Entry entry(int id) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            entries.put(id, entry = new Entry(blockSizes));
+            // Start with a full bucket so the first update goes out immediately
+            entry.tokens = budget();
+            entry.team = net.team(id);
+            entry.inboundRefilled = net.millis();
+        }
+        return entry;
+    }
+
+    private Viewer viewer(int id) {
+        Viewer viewer = viewers.get(id);
+        if (viewer == null) {
+            viewers.put(id, viewer = new Viewer(id));
+            viewer.team = net.team(id);
+        }
+        return viewer;
+    }
+
+    /** A client sent a change to its queue, or a chunk of one. */
+    public void handleSync(int pid, byte[] data) {
+        packetsReceived++;
+        Entry entry = entry(pid);
+        if (!entry.receive(data.length, net.millis(), inboundLimit)) {
+            // The version chain breaks here, so the player is asked for a keyframe once they slow down
+            rejected++;
+            return;
+        }
+        PlanBuffer change = in.wrap(data);
+        if (PlanChunks.isChunk(data, 0)) {
+            int chunk = PlanChunks.accept(in, entry.incoming, net.millis());
+            if (chunk == PlanChunks.PARTIAL) return;
+            if (chunk == PlanChunks.DROPPED) {
+                requestKeyframe(pid, entry);
+                return;
+            }
+            change = entry.incoming.message();
+        } else if (!PlanCodec.isUpdate(data, 0)) {
+            // A whole message means the player moved on from any transfer in progress. Updates may be late instead.
+            entry.incoming.cancel();
+        }
+
+        int start = change.position;
+        int result = PlanCodec.apply(change, entry.received, stamps);
+        if (result == PlanCodec.STALE) {
+            // Still keep the schematics it defines, the player counts on us having them
+            change.position = start;
+            PlanCodec.learn(change, stamps);
+        }
+        entry.incoming.release();
+        if (result == PlanCodec.SKIPPED) {
+            skipped++;
+        } else if (result == PlanCodec.STALE || result == PlanCodec.MISSING) {
+            requestKeyframe(pid, entry);
+        } else if (result == PlanCodec.APPLIED) {
+            entry.receivedHash = PlanCodec.hash(entry.received.plans);
+            entry.receivedBounds.set(entry.received.plans);
+            if (entry.receivedHash == entry.shownHash) {
+                // Back to what clients already have, nothing to send. A transfer in progress still finishes.
+                entry.dirty = false;
+                duplicates++;
+            } else {
+                entry.dirty = true;
+                entry.merged++;
+            }
+        }
+    }
+
+    private void requestKeyframe(int pid, Entry entry) {
+        long now = net.millis();
+        if (now - entry.received.resyncRequested <= resyncCooldown) return;
+        entry.received.resyncRequested = now;
+        net.send(pid, "multiplayerpause-planresync", "");
+    }
+
+    /** A client is missing versions of another player's queue and wants a keyframe. */
+    public void handleResyncRequest(int requester, String data) {
+        int pid = Strings.parseInt(data, -1);
+        Entry entry = entries.get(pid);
+        Viewer viewer = viewers.get(requester);
+        // Only watchers are sent the player's plans
+        if (entry == null || viewer == null || !entry.watchers.contains(requester)) return;
+
+        // It may have asked because it lacks a schematic, so everyone is sent the bodies again from now on
+        entry.stamps.clear();
+        sendKeyframe(viewer, pid, entry);
+        if (viewer.batch.position > 0) sendBatch(viewer, false);
+    }
+
+    /**
+     * A client reported the tiles it sees, as {@code "minX minY maxX maxY"}, or that it wants every plan it may see
+     * again with an empty string. Takes effect on the next flush.
+     */
+    public void handleView(int pid, String data) {
+        Viewer viewer = viewer(pid);
+        String[] parts = data.split(" ");
+        viewer.hasView = false;
+        if (parts.length < 4) return;
+
+        int minX = Strings.parseInt(parts[0], Integer.MIN_VALUE), minY = Strings.parseInt(parts[1], Integer.MIN_VALUE);
+        int maxX = Strings.parseInt(parts[2], Integer.MIN_VALUE), maxY = Strings.parseInt(parts[3], Integer.MIN_VALUE);
+        if (minX == Integer.MIN_VALUE || minY == Integer.MIN_VALUE || maxX < minX || maxY < minY) return;
+        viewer.hasView = true;
+        viewer.minX = minX;
+        viewer.minY = minY;
+        viewer.maxX = maxX;
+        viewer.maxY = maxY;
+    }
+
+    /** Sends a player who just joined a keyframe of everyone's plans they watch, and a summary of the rest. */
+    public void playerJoined(int joined) {
+        Viewer viewer = viewer(joined);
+        teamOnly = teamOnly();
+        for (IntMap.Entry<Entry> e : entries) {
+            e.value.team = net.team(e.key);
+            updateInterest(viewer, e.key, e.value);
+        }
+        send(viewer);
+    }
+
+    public void playerLeft(int pid) {
+        Entry entry = entries.remove(pid);
+        if (entry != null) {
+            leftStampHits += entry.stamps.hits;
+            leftStampMisses += entry.stamps.misses;
+        }
+        removeViewer(pid);
+        for (Viewer viewer : viewers.values()) viewer.summarized.remove(pid, 0);
+    }
+
+    private void removeViewer(int id) {
+        viewers.remove(id);
+        for (IntMap.Entry<Entry> e : entries) {
+            e.value.watchers.remove(id);
+            e.value.caughtUp.remove(id);
+            e.value.away.remove(id, 0);
+        }
+    }
+
+    /** Whether the client watches the player, i.e. holds their plans in detail. */
+    public boolean watching(int viewer, int pid) {
+        Entry entry = entries.get(pid);
+        return entry != null && entry.watchers.contains(viewer);
+    }
+
+    /** Called every frame on the server; flushes pending changes once the flush interval passed. */
+    public void update() {
+        long now = net.millis(), since = now - lastFlush;
+        if (since < flushInterval()) return;
+        lastFlush = now;
+        expire(lastFlush);
+        flush(Math.min(since, 1000) / 1000f);
+    }
+
+    /** Gives up on incoming transfers that stopped arriving and asks their senders for everything again. */
+    void expire(long now) {
+        for (IntMap.Entry<Entry> e : entries) {
+            if (e.value.incoming.expired(now)) {
+                e.value.incoming.cancel();
+                requestKeyframe(e.key, e.value);
+            }
+        }
+    }
+
+    void flush(float delta) {
+        int budget = budget();
+        long now = net.millis();
+        teamOnly = teamOnly();
+        unreliable = unreliableUpdates();
+        inboundLimit = inboundLimit();
+        flushes++;
+        updateViewers();
+
+        for (IntMap.Entry<Entry> e : entries) {
+            Entry entry = e.value;
+            entry.tokens = Math.min(budget, entry.tokens + budget * delta);
+            entry.team = net.team(e.key);
+            if (entry.summaryChanged && now - entry.summaryUpdated >= summaryInterval) {
+                entry.summaryChanged = false;
+                entry.summaryUpdated = now;
+                entry.summaryVersion++;
+            }
+            for (Viewer viewer : viewers.values()) updateInterest(viewer, e.key, entry);
+
+            if (!entry.dirty && entry.outgoing == null && entry.broadcast.updated() && now - entry.updatedSince >= PlanCodec.CHECKPOINT_INTERVAL) {
+                // Time to follow the updates with a reliable delta, in case watchers lost some
+                entry.dirty = true;
+            }
+            if (entry.dirty) flush(e.key, entry, budget, now);
+            sendChunks(e.key, entry, budget);
+        }
+        for (Viewer viewer : viewers.values()) send(viewer);
+    }
+
+    /** Sends the player's latest queue to their watchers as an update, a delta or the start of a chunked transfer. */
+    private void flush(int pid, Entry entry, int budget, long now) {
+        PlanState broadcast = entry.broadcast;
+        int version = broadcast.version + 1;
+        boolean due = broadcast.updated() && now - entry.updatedSince >= PlanCodec.CHECKPOINT_INTERVAL;
+        if (entry.outgoing == null && !due && unreliable && PlanCodec.writeUpdate(message, scratch, broadcast, version, entry.received.plans)) {
+            int cost = message.position * recipients(pid, entry, false);
+            if (cost > entry.tokens && entry.tokens < budget) {
+                throttled++;
+                return;
+            }
+            entry.tokens -= cost;
+            if (!broadcast.updated()) entry.updatedSince = now;
+            broadcast.update(entry.received.plans, entry.received.plans.size, version);
+            entry.shown();
+            entry.dirty = false;
+            deliver(pid, entry, false, true);
+            return;
+        }
+
+        message.reset();
+        PlanCodec.writeDelta(message, broadcast.baseVersion, version, broadcast.base, entry.received.plans, entry.stamps);
+        if (entry.outgoing != null && message.position >= entry.remaining()) {
+            entry.stamps.rollback();
+            return;
+        }
+        if (entry.outgoing != null) {
+            // Starting over is cheaper than finishing, e.g. the player cleared their queue.
+            // Receivers drop the unfinished transfer when the new message arrives.
+            entry.endTransfer();
+            canceled++;
+        }
+
+        int count = entry.received.plans.size;
+        if (message.position > PlanChunks.MAX_TRANSFER) {
+            // Too big for clients to reassemble, e.g. with schematic bodies; a keyframe never refers to any
+            entry.stamps.rollback();
+            message.reset();
+            count = PlanCodec.writeKeyframe(message, version, entry.received.plans, PlanChunks.MAX_TRANSFER);
+        }
+        if (message.position > PlanCodec.MAX_PAYLOAD) {
+            entry.outgoing = message.toBytes();
+            entry.transfer = ++nextTransfer;
+            entry.nextChunk = 0;
+            entry.sending.set(entry.received.plans, count, version);
+            entry.shown();
+            entry.dirty = false;
+            entry.stamps.commit();
+            transfers++;
+        } else {
+            // Messages bigger than the whole bucket still go out once it is full, leaving it in debt
+            int cost = message.position * recipients(pid, entry, false);
+            if (cost > entry.tokens && entry.tokens < budget) {
+                entry.stamps.rollback();
+                throttled++;
+                return;
+            }
+            entry.stamps.commit();
+            entry.tokens -= cost;
+            broadcast.set(entry.received.plans, count, version);
+            entry.shown();
+            entry.dirty = false;
+            deliver(pid, entry, false, false);
+        }
+    }
+
+    /** Adds viewers for clients that connected and drops the ones that disconnected. */
+    private void updateViewers() {
+        net.players(players);
+        for (Viewer viewer : viewers.values()) viewer.connected = false;
+        for (int i = 0; i < players.size; i++) {
+            Viewer viewer = viewer(players.items[i]);
+            viewer.connected = true;
+            viewer.team = net.team(viewer.id);
+        }
+        players.clear();
+        for (Viewer viewer : viewers.values()) {
+            if (!viewer.connected) players.add(viewer.id);
+        }
+        for (int i = 0; i < players.size; i++) removeViewer(players.items[i]);
+    }
+
+    /** Makes the viewer watch the player, get a summary of their plans or nothing at all, whichever it should. */
+    private void updateInterest(Viewer viewer, int pid, Entry entry) {
+        if (viewer.id == pid) return;
+        boolean watching = entry.watchers.contains(viewer.id);
+
+        if (teamOnly && viewer.team != entry.team) {
+            // Another team: take back anything it was sent, e.g. after a team change
+            if (watching || viewer.summarized.containsKey(pid)) {
+                unwatch(viewer, entry);
+                viewer.summarized.remove(pid, 0);
+                writeSummary(viewer, pid, null);
+            }
+            return;
+        }
+
+        // Once watched, plans have to move a bit further away, for a while, to stop being watched
+        int margin = watching ? viewMargin : 0;
+        if (!viewer.hasView || entry.receivedBounds.near(viewer, margin) || entry.shownBounds.near(viewer, margin)) {
+            if (!watching) watch(viewer, pid, entry);
+            entry.away.remove(viewer.id, 0);
+            return;
+        }
+        if (watching) {
+            int away = entry.away.get(viewer.id, -1);
+            if (away == -1) entry.away.put(viewer.id, away = flushes);
+            if ((long)(flushes - away) * Math.max(flushInterval(), 1) < unwatchDelay) return;
+            unwatch(viewer, entry);
+        }
+
+        int sent = viewer.summarized.get(pid, -1);
+        if (sent == entry.summaryVersion) return;
+        // Nothing to tell a client that has nothing
+        if (!watching && sent == -1 && entry.shownBounds.count == 0) return;
+        viewer.summarized.put(pid, entry.summaryVersion);
+        writeSummary(viewer, pid, entry.shownBounds);
+    }
+
+    private void watch(Viewer viewer, int pid, Entry entry) {
+        entry.watchers.add(viewer.id);
+        viewer.summarized.remove(pid, 0);
+        // The new watcher has none of the schematics sent so far. The others are sent the bodies again, which they
+        // already have, and since they saw all of them after anything older they never drop one we rely on.
+        entry.stamps.clear();
+
+        PlanState state = entry.outgoing != null ? entry.sending : entry.broadcast;
+        if (state.version == 0 && state.plans.isEmpty()) return;
+        sendKeyframe(viewer, pid, entry);
+        snapshots++;
+    }
+
+    private void unwatch(Viewer viewer, Entry entry) {
+        entry.watchers.remove(viewer.id);
+        entry.caughtUp.remove(viewer.id);
+        entry.away.remove(viewer.id, 0);
+    }
+
+    /**
+     * Adds a keyframe of what the player's watchers hold to the viewer's batch, chunked if it is too big: their
+     * base, and the latest update on top of it, so it takes the updates and deltas that follow like they do.
+     */
+    private void sendKeyframe(Viewer viewer, int pid, Entry entry) {
+        // During a transfer, skip straight to where everyone else ends up once it completes
+        PlanState state = entry.broadcast;
+        if (entry.outgoing != null) {
+            state = entry.sending;
+            entry.caughtUp.add(viewer.id);
+        }
+        message.reset();
+        PlanCodec.writeKeyframe(message, state.baseVersion, state.base, PlanChunks.MAX_TRANSFER);
+        // A new watcher has to be caught up now, so this only leaves the player's bucket in debt
+        entry.tokens -= message.position;
+        if (message.position <= PlanCodec.MAX_PAYLOAD) {
+            append(viewer, pid, false);
+        } else {
+            byte[] keyframe = message.toBytes();
+            int transfer = ++nextTransfer;
+            for (int i = 0, count = PlanChunks.count(keyframe.length); i < count; i++) {
+                message.reset();
+                PlanChunks.writeChunk(message, transfer, i, keyframe, keyframe.length);
+                append(viewer, pid, false);
+            }
+        }
+
+        if (state.updated()) {
+            message.reset();
+            PlanCodec.writeUpdate(message, state.baseVersion, state.version, state.base, state.plans);
+            entry.tokens -= message.position;
+            append(viewer, pid, false);
+        }
+    }
+
+    /** Sends as much of the player's outgoing transfer as their budget allows. */
+    private void sendChunks(int pid, Entry entry, int budget) {
+        while (entry.outgoing != null) {
+            message.reset();
+            PlanChunks.writeChunk(message, entry.transfer, entry.nextChunk, entry.outgoing, entry.outgoing.length);
+            int cost = message.position * recipients(pid, entry, true);
+            if (cost > entry.tokens && entry.tokens < budget) {
+                throttled++;
+                return;
+            }
+            entry.tokens -= cost;
+            entry.nextChunk++;
+            deliver(pid, entry, true, false);
+            if (entry.nextChunk == PlanChunks.count(entry.outgoing.length)) {
+                entry.broadcast.set(entry.sending.plans, entry.sending.plans.size, entry.sending.version);
+                entry.endTransfer();
+            }
+        }
+    }
+
+    /** Number of clients {@link #deliver} would add a message to. */
+    private int recipients(int pid, Entry entry, boolean chunk) {
+        int count = 0;
+        IntSet.IntSetIterator watchers = entry.watchers.iterator();
+        while (watchers.hasNext) {
+            int id = watchers.next();
+            if (viewers.containsKey(id) && !(chunk && entry.caughtUp.contains(id))) count++;
+        }
+        return count;
+    }
+
+    /** Adds {@link #message} to the batch, or the batch of updates, of every client watching the player. */
+    private void deliver(int pid, Entry entry, boolean chunk, boolean update) {
+        IntSet.IntSetIterator watchers = entry.watchers.iterator();
+        while (watchers.hasNext) {
+            int id = watchers.next();
+            Viewer viewer = viewers.get(id);
+            if (viewer == null || (chunk && entry.caughtUp.contains(id))) continue;
+            append(viewer, pid, update);
+            viewer.merged += entry.merged;
+        }
+        filtered += Math.max(viewers.size - entry.watchers.size - (viewers.containsKey(pid) ? 1 : 0), 0);
+        entry.merged = 0;
+    }
+
+    /** Adds {@link #message} to one of the viewer's batches, sending the batch first if it would get too big. */
+    private void append(Viewer viewer, int pid, boolean update) {
+        PlanBuffer batch = update ? viewer.updates : viewer.batch;
+        int max = update ? PlanCodec.MAX_UPDATE : PlanCodec.MAX_PAYLOAD;
+        if (batch.position > 0 && batch.position + message.position + 10 > max) sendBatch(viewer, update);
+        batch.writeVarInt(pid);
+        batch.writeVarInt(message.position);
+        batch.writeBytes(message.bytes, 0, message.position);
+    }
+
+    private void sendBatch(Viewer viewer, boolean update) {
+        // Without batching, every received packet would have been relayed on its own
+        packetsSaved += Math.max(viewer.merged - 1, 0);
+        packetsSent++;
+        PlanBuffer batch = update ? viewer.updates : viewer.batch;
+        bytesSent += batch.position;
+        if (update) {
+            updatesSent++;
+            net.sendUnreliable(viewer.id, "multiplayerpause-updateplans", batch.toBytes());
+        } else {
+            net.send(viewer.id, "multiplayerpause-updateplans", batch.toBytes());
+        }
+        batch.reset();
+        viewer.merged = 0;
+    }
+
+    /** Adds a summary of the player's plans to the viewer's; null bounds just take back what it had. */
+    private void writeSummary(Viewer viewer, int pid, Bounds bounds) {
+        PlanBuffer out = viewer.summaries;
+        if (out.position > PlanCodec.MAX_PAYLOAD - 32) sendSummaries(viewer);
+        int count = bounds == null ? 0 : bounds.count;
+        out.writeVarInt(pid);
+        out.writeVarInt(count);
+        if (count > 0) {
+            out.writeZigZag(bounds.minX);
+            out.writeZigZag(bounds.minY);
+            out.writeVarInt(bounds.maxX - bounds.minX);
+            out.writeVarInt(bounds.maxY - bounds.minY);
+        }
+        summaries++;
+    }
+
+    private void sendSummaries(Viewer viewer) {
+        packetsSent++;
+        bytesSent += viewer.summaries.position;
+        net.send(viewer.id, "multiplayerpause-plansummary", viewer.summaries.toBytes());
+        viewer.summaries.reset();
+    }
+
+    /** Sends what was batched for the viewer, plans before the summaries that may take some of them back. */
+    private void send(Viewer viewer) {
+        if (viewer.batch.position > 0) sendBatch(viewer, false);
+        if (viewer.updates.position > 0) sendBatch(viewer, true);
+        if (viewer.summaries.position > 0) sendSummaries(viewer);
+    }
+
+    /** Schematics sent as a reference to a body clients already had. */
+    public long stampsSent() {
+        long hits = leftStampHits;
+        for (IntMap.Entry<Entry> e : entries) hits += e.value.stamps.hits;
+        return hits;
+    }
+
+    /** Schematic bodies sent because clients didn't have them yet. */
+    public long stampBodiesSent() {
+        long misses = leftStampMisses;
+        for (IntMap.Entry<Entry> e : entries) misses += e.value.stamps.misses;
+        return misses;
+    }
+
+    public String stats() {
+        return Strings.format("received @ packets, sent @ packets (@ KB), saved @ packets, throttled @ flushes, @ chunked transfers (@ restarted), dropped @ unchanged updates, sent @ snapshots, @ packets of unreliable updates (@ received out of order), rejected @ packets over the inbound limit, @ updates not sent to uninterested players, @ summaries, @ schematics sent as references (@ bodies), received @",
+            packetsReceived, packetsSent, bytesSent / 1024, packetsSaved, throttled, transfers, canceled, duplicates, snapshots, updatesSent, skipped, rejected, filtered, summaries, stampsSent(), stampBodiesSent(), stamps.stats());
+    }
+}
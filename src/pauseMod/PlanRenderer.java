@@ -0,0 +1,394 @@
+package pauseMod;
+
+import arc.Core;
+import arc.graphics.Blending;
+import arc.graphics.Color;
+import arc.graphics.Gl;
+import arc.graphics.Texture.TextureFilter;
+import arc.graphics.g2d.Draw;
+import arc.graphics.g2d.Font;
+import arc.graphics.g2d.Lines;
+import arc.graphics.g2d.TextureRegion;
+import arc.graphics.gl.FrameBuffer;
+import arc.math.Mat;
+import arc.math.Mathf;
+import arc.struct.IntMap;
+import arc.struct.IntSeq;
+import arc.struct.LongSeq;
+import arc.struct.Seq;
+import arc.util.Align;
+import mindustry.gen.Groups;
+import mindustry.gen.Player;
+import mindustry.ui.Fonts;
+import mindustry.world.Block;
+
+import static mindustry.Vars.*;
+
+/**
+ * Draws other players' plans while paused.
+ *
+ * Only plans the {@link PlanIndex} returns for the camera rectangle are visited, and drawing is grouped by
+ * state: all ghosts with one colour, then all breaking outlines, then the name labels with the font set up
+ * once, instead of switching state per plan.
+ *
+ * Players whose plans the host only summarizes for us are labelled at the edge of the screen closest to them.
+ *
+ * With plan caching on, each {@link PlanIndex} chunk of plans is rendered once into a slot of an offscreen atlas
+ * and then drawn as a single quad every frame. A slot is only rendered again when the chunk's hash says its plans
+ * changed, or when the chunk comes into view without a slot; the least recently drawn slots are reused for that.
+ * Chunks that find no free slot this frame are drawn directly.
+ *
+ * The atlas holds about as many slots as there are chunks on screen, with as many pixels per world unit as the
+ * screen rounded up to a power of two (at most what block sprites have), so it takes memory in proportion to the
+ * screen and cached plans stay sharp. Zooming past that resolution, or out to more chunks than the atlas holds,
+ * allocates it again and renders every chunk anew.
+ */
+public class PlanRenderer {
+    /** Largest side of the offscreen atlas in pixels, the size of the game's own sprite atlas pages. */
+    static final int maxAtlasSize = 4096;
+    /** Range of atlas pixels per world unit; block sprites have 4, so more adds no detail. */
+    static final float minScale = 0.25f, maxScale = 4f;
+    /** Slots per chunk on screen, so that panning doesn't immediately reuse the chunks just scrolled past. */
+    static final float slotsPerChunk = 1.25f;
+    static final float chunkWorldSize = (1 << PlanIndex.chunkShift) * tilesize;
+    /** How far off-screen a name label's anchor may be and still be drawn, about half a long name. */
+    static final float labelMargin = 8 * tilesize;
+
+    /** Plans in the slot are drawn with separate alpha blending, so the slot ends up premultiplied... */
+    private static final Blending toSlot = new Blending(Gl.srcAlpha, Gl.oneMinusSrcAlpha, Gl.one, Gl.oneMinusSrcAlpha);
+    /** ...and is drawn to the screen as such. */
+    private static final Blending premultiplied = new Blending(Gl.one, Gl.oneMinusSrcAlpha);
+
+    private final PlanSync planSync;
+    private final Metrics metrics;
+    private final Metrics.Timer cacheTime;
+    private final LongSeq breaking = new LongSeq();
+    private final IntSeq owners = new IntSeq();
+    private final PlanIndex.Visitor ghostVisitor = this::drawGhost;
+    private final StringBuilder label = new StringBuilder();
+
+    // Cache: atlas created on first use and released when not paused
+    private FrameBuffer atlas;
+    private final Seq<Slot> slots = new Seq<>();
+    private final IntMap<Slot> cached = new IntMap<>();
+    private final IntSeq visible = new IntSeq(), uncached = new IntSeq();
+    private final Seq<Slot> dirty = new Seq<>();
+    private final Mat projection = new Mat(), slotProjection = new Mat();
+    private final Runnable cachedDraw = this::drawCached;
+    private float pad, scale;
+    private int slotSize, atlasWidth, atlasHeight;
+    /** Whether the atlas is as big as it gets at this scale, so chunks that don't fit are drawn directly. */
+    private boolean full;
+    private long frame;
+    private int visited;
+
+    /** Plans drawn and skipped as off-screen in the last frame. */
+    public int drawn, culled;
+    /** Chunks rendered into the cache and drawn from it without rendering, in the last frame drawn from the cache. */
+    public int rendered, reused;
+
+    /** A chunk's rendered plans in the atlas. */
+    static class Slot {
+        /** Pixel position in the atlas. */
+        final int x, y;
+        final TextureRegion region;
+        int key;
+        long hash, used = -1;
+
+        Slot(int x, int y, TextureRegion region) {
+            this.x = x;
+            this.y = y;
+            this.region = region;
+        }
+    }
+
+    public PlanRenderer(PlanSync planSync, Metrics metrics) {
+        this.planSync = planSync;
+        this.metrics = metrics;
+        // Runs later in the frame than draw(), so it is timed on its own
+        cacheTime = metrics.timer("plan preview cache draw");
+    }
+
+    public void draw() {
+        PlanIndex index = planSync.index();
+        prune(index);
+
+        float minX = Core.camera.position.x - Core.camera.width / 2f;
+        float minY = Core.camera.position.y - Core.camera.height / 2f;
+        int tileMinX = (int)Math.floor(minX / tilesize), tileMinY = (int)Math.floor(minY / tilesize);
+        int tileMaxX = (int)Math.ceil((minX + Core.camera.width) / tilesize), tileMaxY = (int)Math.ceil((minY + Core.camera.height) / tilesize);
+
+        if (Core.settings.getBool("multiplayerpause-plancache")) {
+            // Pick the chunks now, but render and draw them when the sorted batch gets to our layer, where binding
+            // the atlas can't end up in the middle of queued draws
+            index.chunks(tileMinX, tileMinY, tileMaxX, tileMaxY, visible);
+            drawn = 0;
+            for (int i = 0; i < visible.size; i++) {
+                drawn += index.count(visible.items[i]);
+            }
+            frame++;
+            Draw.draw(Draw.z(), cachedDraw);
+        } else {
+            release();
+            // Ghosts: draw the plan with half transparency using the block's full region
+            visited = 0;
+            breaking.clear();
+            Draw.color(Color.white, 0.5f);
+            index.query(tileMinX, tileMinY, tileMaxX, tileMaxY, ghostVisitor);
+            drawBreaking();
+            Draw.reset();
+            drawn = visited;
+        }
+        culled = index.size() - drawn;
+
+        if (Core.settings.getBool("multiplayerpause-shownames")) drawNames(minX, minY, minX + Core.camera.width, minY + Core.camera.height);
+    }
+
+    /** @return the memory the atlas takes, in bytes */
+    public long atlasBytes() {
+        return atlas == null ? 0 : (long)atlasWidth * atlasHeight * 4;
+    }
+
+    /** Frees the atlas; it is created again the next time cached plans are drawn. */
+    public void release() {
+        rendered = reused = 0;
+        if (atlas == null) return;
+        atlas.dispose();
+        atlas = null;
+        slots.clear();
+        cached.clear();
+    }
+
+    private void drawCached() {
+        long start = metrics.begin();
+        PlanIndex index = planSync.index();
+        // Screen pixels per world unit, which the atlas needs at least to not look blurry
+        float wanted = Core.graphics.getWidth() / Core.camera.width;
+        if (atlas != null && (wanted > scale && scale < maxScale || wanted <= scale / 2f && scale > minScale
+            || visible.size > slots.size && !full)) {
+            release();
+        }
+        if (atlas == null) allocate(index, wanted);
+        rendered = reused = 0;
+
+        // Find each chunk's slot, claiming the least recently drawn one for chunks that have none
+        dirty.clear();
+        uncached.clear();
+        for (int i = 0; i < visible.size; i++) {
+            int key = visible.items[i];
+            long hash = index.hash(key);
+            Slot slot = cached.get(key);
+            if (slot == null) {
+                slot = claim(key);
+                if (slot == null) {
+                    uncached.add(key);
+                    continue;
+                }
+                slot.hash = hash;
+                dirty.add(slot);
+            } else if (slot.hash != hash) {
+                slot.hash = hash;
+                dirty.add(slot);
+            } else {
+                reused++;
+            }
+            slot.used = frame;
+        }
+
+        if (dirty.size > 0) {
+            projection.set(Draw.proj());
+            atlas.begin();
+            Gl.enable(Gl.scissorTest);
+            Draw.blend(toSlot);
+            for (int i = 0; i < dirty.size; i++) {
+                render(index, dirty.get(i));
+            }
+            Draw.blend();
+            Gl.disable(Gl.scissorTest);
+            atlas.end();
+            Draw.proj(projection);
+            rendered = dirty.size;
+        }
+
+        // One quad per cached chunk, then whatever didn't fit in the atlas
+        Draw.blend(premultiplied);
+        Draw.color();
+        float size = slotSize / scale;
+        for (int i = 0; i < visible.size; i++) {
+            Slot slot = cached.get(visible.items[i]);
+            if (slot == null || slot.used != frame) continue;
+            Draw.rect(slot.region, originX(slot.key) + size / 2f, originY(slot.key) + size / 2f, size, size);
+        }
+        Draw.blend();
+        for (int i = 0; i < uncached.size; i++) {
+            drawChunk(index, uncached.items[i]);
+        }
+        Draw.reset();
+        metrics.end(cacheTime, start);
+    }
+
+    private void allocate(PlanIndex index, float wanted) {
+        scale = minScale;
+        while (scale < wanted && scale < maxScale) scale *= 2f;
+        // Room around the chunk for the biggest block filed in it, and its outline
+        pad = (index.maxSize() / 2 + 1) * tilesize;
+        slotSize = (int)((chunkWorldSize + pad * 2) * scale);
+        int count = Math.max((int)Math.ceil(visible.size * slotsPerChunk), 1), most = Math.max(maxAtlasSize / slotSize, 1);
+        int columns = Math.min((int)Math.ceil(Math.sqrt(count)), most), rows = Math.min((count + columns - 1) / columns, most);
+        full = columns * rows < count;
+        atlasWidth = columns * slotSize;
+        atlasHeight = rows * slotSize;
+        atlas = new FrameBuffer(atlasWidth, atlasHeight);
+        atlas.getTexture().setFilter(TextureFilter.linear);
+
+        for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < columns; x++) {
+                TextureRegion region = new TextureRegion(atlas.getTexture(), x * slotSize, y * slotSize, slotSize, slotSize);
+                region.flip(false, true); // Framebuffers are upside down
+                slots.add(new Slot(x * slotSize, y * slotSize, region));
+            }
+        }
+    }
+
+    /** @return the least recently drawn slot not drawn this frame, now holding {@code key}, or null if all are in use */
+    private Slot claim(int key) {
+        Slot best = null;
+        for (int i = 0; i < slots.size; i++) {
+            Slot slot = slots.get(i);
+            if (slot.used != frame && (best == null || slot.used < best.used)) best = slot;
+        }
+        if (best == null) return null;
+        if (cached.get(best.key) == best) cached.remove(best.key);
+        best.key = key;
+        cached.put(key, best);
+        return best;
+    }
+
+    /** Renders the slot's chunk into its part of the atlas, which must be bound. */
+    private void render(PlanIndex index, Slot slot) {
+        // Map the world so the slot's origin lands on its pixel position and the rest of the atlas lies around it
+        slotProjection.setOrtho(originX(slot.key) - slot.x / scale, originY(slot.key) - slot.y / scale, atlasWidth / scale, atlasHeight / scale);
+        Draw.proj(slotProjection);
+        Gl.scissor(slot.x, slot.y, slotSize, slotSize);
+        Gl.clearColor(0f, 0f, 0f, 0f);
+        Gl.clear(Gl.colorBufferBit);
+        drawChunk(index, slot.key);
+        Draw.flush();
+    }
+
+    /** Draws the plans filed in a chunk. */
+    private void drawChunk(PlanIndex index, int key) {
+        // Ghosts: draw the plan with half transparency using the block's full region
+        breaking.clear();
+        Draw.color(Color.white, 0.5f);
+        index.chunk(key, ghostVisitor);
+        drawBreaking();
+    }
+
+    /** Breaking: red outlines */
+    private void drawBreaking() {
+        if (breaking.size == 0) return;
+        Draw.color(Color.scarlet);
+        Lines.stroke(1f);
+        for (int i = 0; i < breaking.size; i++) {
+            long plan = breaking.items[i];
+            Block block = content.block(PlanCodec.block(plan));
+            float size = block.size * tilesize;
+            Lines.rect(drawx(plan, block) - size / 2f, drawy(plan, block) - size / 2f, size, size);
+        }
+        breaking.clear();
+    }
+
+    /** World position of the bottom left corner of a chunk's slot. */
+    private float originX(int key) {
+        return PlanIndex.chunkX(key) * chunkWorldSize - tilesize / 2f - pad;
+    }
+
+    private float originY(int key) {
+        return PlanIndex.chunkY(key) * chunkWorldSize - tilesize / 2f - pad;
+    }
+
+    private void drawGhost(int owner, long plan) {
+        int id = PlanCodec.block(plan);
+        Block block = id < 0 ? null : content.block(id);
+        if (block == null) return;
+
+        visited++;
+        if (PlanCodec.breaking(plan)) {
+            breaking.add(plan);
+        } else {
+            Draw.rect(block.fullIcon, drawx(plan, block), drawy(plan, block), PlanCodec.rotation(plan) * 90);
+        }
+    }
+
+    /** Draws each player's name above their first plan for identification, if that is on screen. */
+    private void drawNames(float minX, float minY, float maxX, float maxY) {
+        // Labels are centred on their anchor, so keep ones that could still reach into the view
+        minX -= labelMargin;
+        minY -= labelMargin;
+        maxX += labelMargin;
+        maxY += labelMargin;
+        Font font = Fonts.outline;
+        boolean integer = font.usesIntegerPositions();
+        font.setUseIntegerPositions(false);
+        font.getData().setScale(1f / 4f); // Scale down font for world space
+        font.setColor(Color.white);
+
+        for (int i = 0; i < owners.size; i++) {
+            Player p = Groups.player.getByID(owners.items[i]);
+            LongSeq plans = planSync.plans(owners.items[i]);
+            if (p == null || plans == null || plans.size == 0) continue;
+
+            long first = plans.items[0];
+            int id = PlanCodec.block(first);
+            Block block = id < 0 ? null : content.block(id);
+            if (block == null) continue;
+            float x = drawx(first, block), y = drawy(first, block) + block.size * tilesize / 2f + 4f;
+            if (x < minX || x > maxX || y < minY || y > maxY) continue;
+            font.draw(p.name, x, y, Align.center);
+        }
+
+        drawSummaries(font);
+
+        font.getData().setScale(1f); // Reset scale
+        font.setUseIntegerPositions(integer);
+    }
+
+    /** Labels players whose plans are elsewhere with how many they have, at the edge of the screen towards them. */
+    private void drawSummaries(Font font) {
+        float edge = 6f;
+        float minX = Core.camera.position.x - Core.camera.width / 2f + edge, maxX = minX + Core.camera.width - edge * 2f;
+        float minY = Core.camera.position.y - Core.camera.height / 2f + edge, maxY = minY + Core.camera.height - edge * 2f;
+        font.setColor(Color.lightGray);
+        for (IntMap.Entry<PlanSync.Summary> e : planSync.summaries()) {
+            Player p = Groups.player.getByID(e.key);
+            if (p == null) continue;
+            PlanSync.Summary summary = e.value;
+            label.setLength(0);
+            label.append(p.name).append("[lightgray] (").append(summary.count).append(')');
+            float x = (summary.minX + summary.maxX) / 2f * tilesize, y = (summary.minY + summary.maxY) / 2f * tilesize;
+            font.draw(label, Mathf.clamp(x, minX, maxX), Mathf.clamp(y, minY, maxY), Align.center);
+        }
+        font.setColor(Color.white);
+    }
+
+    /** Drops plans of players that left or are now the local player. */
+    private void prune(PlanIndex index) {
+        index.owners(owners);
+        for (int i = owners.size - 1; i >= 0; i--) {
+            int id = owners.items[i];
+            if (Groups.player.getByID(id) == null || (player != null && player.id == id)) {
+                planSync.forget(id);
+                owners.removeIndex(i);
+            }
+        }
+    }
+
+    private static float drawx(long plan, Block block) {
+        return PlanCodec.x(plan) * tilesize + block.offset;
+    }
+
+    private static float drawy(long plan, Block block) {
+        return PlanCodec.y(plan) * tilesize + block.offset;
+    }
+}
@@ -0,0 +1,96 @@
+package pauseMod;
+
+import arc.struct.LongSeq;
+
+/**
+ * A versioned copy of one player's plan queue in the packed form used by {@link PlanCodec}.
+ * Changes are staged in a work buffer and only committed once a whole packet decoded cleanly,
+ * so a malformed or stale packet never leaves the state half applied.
+ *
+ * Besides the latest plans it keeps the base, the last ones that came in a reliable message, which unreliable
+ * updates ({@link PlanCodec#FLAG_UPDATE}) and the next reliable delta are both based on.
+ */
+public class PlanState {
+    /**
+     * Committed plans. The field is reassigned on every commit and the array it held is reused as the next work
+     * buffer, so callers that keep the plans must copy them.
+     */
+    public LongSeq plans = new LongSeq();
+    /** Version of the committed plans; 0 means nothing has been received yet. */
+    public int version;
+    /** Plans and version of the last reliable message; the same as the committed ones unless updates followed it. */
+    public LongSeq base = new LongSeq();
+    public int baseVersion;
+    /** Far enough before any clock's start that the first resync request is never throttled. */
+    static final long never = Long.MIN_VALUE / 2;
+
+    /** Last time a keyframe was requested for this state, used to throttle resync requests. */
+    public long resyncRequested = never;
+
+    LongSeq work = new LongSeq();
+    LongSeq spare = new LongSeq();
+
+    /** Starts a change from the base. */
+    LongSeq begin() {
+        copy(base, work, base.size);
+        return work;
+    }
+
+    /** Commits the work buffer as an update, leaving the base as it is. */
+    void commit(int version) {
+        LongSeq old = plans;
+        plans = work;
+        work = old;
+        this.version = version;
+    }
+
+    /** Commits the work buffer as the new base. */
+    void commitBase(int version) {
+        commit(version);
+        copy(plans, base, plans.size);
+        baseVersion = version;
+    }
+
+    /** Replaces the committed plans and the base with the first {@code count} entries of {@code source}. */
+    public void set(LongSeq source, int count, int version) {
+        copy(source, work, count);
+        commitBase(version);
+    }
+
+    /** Replaces the committed plans with the first {@code count} entries of {@code source}, as an update. */
+    public void update(LongSeq source, int count, int version) {
+        copy(source, work, count);
+        commit(version);
+    }
+
+    /** Whether updates were committed since the base. */
+    public boolean updated() {
+        return version != baseVersion;
+    }
+
+    public void clear() {
+        plans.clear();
+        base.clear();
+        work.clear();
+        spare.clear();
+        version = baseVersion = 0;
+        resyncRequested = never;
+    }
+
+    static void copy(LongSeq from, LongSeq to, int count) {
+        to.clear();
+        for (int i = 0; i < count; i++) {
+            to.add(from.items[i]);
+        }
+    }
+
+    /** Whether the committed plans are exactly {@code other}. */
+    public boolean matches(LongSeq other) {
+        if (other.size != plans.size) return false;
+        long[] a = plans.items, b = other.items;
+        for (int i = 0; i < other.size; i++) {
+            if (a[i] != b[i]) return false;
+        }
+        return true;
+    }
+}
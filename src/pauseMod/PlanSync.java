@@ -0,0 +1,366 @@
+package pauseMod;
+
+import arc.func.Cons;
+import arc.struct.IntMap;
+import arc.struct.LongSeq;
+import arc.struct.Queue;
+import mindustry.entities.units.BuildPlan;
+import mindustry.gen.Groups;
+import mindustry.gen.Player;
+import mindustry.gen.Unit;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps build plans in sync between players while the game is paused.
+ *
+ * Clients send deltas of their own queue against the last version they sent. The server ({@link PlanRelay})
+ * keeps a copy of every player's queue, validates each packet against it and relays batched changes to everyone
+ * else; receivers that missed a version (e.g. they joined late) ask the server for a keyframe. Optionally, small
+ * changes go out unreliably, each one against the last reliable message, so a stream of them never holds up the
+ * pause state; a reliable one follows within {@link PlanCodec#CHECKPOINT_INTERVAL} in case some were lost.
+ *
+ * Received batches are decoded on a worker thread ({@link PlanDecoder}), which also builds the units' plan queues
+ * from recycled ones ({@link PlanPool}), so the game thread only swaps in finished queues in {@link #update()}.
+ *
+ * Clients may report the tiles they see ({@link #reportView}); the server then only sends plans near them in detail
+ * and a {@link Summary} of the others.
+ */
+public class PlanSync {
+    private static final long expireInterval = 500;
+    /** Milliseconds between view reports at most, and without the camera leaving the reported view at least. */
+    private static final long viewInterval = 250, viewRefresh = 5000;
+    /** Tiles around the camera that are reported as seen, at least. */
+    static final int viewMargin = 16;
+
+    /** How many plans a player has and which tiles they span, for players whose plans are elsewhere. */
+    public static class Summary {
+        public int count, minX, minY, maxX, maxY;
+        /** Batches received before it, whose plans it replaces. */
+        int batch;
+    }
+
+    private final NetBridge net;
+    private final PlanDecoder decoder;
+    private final PlanPool pool = new PlanPool();
+
+    // Client: what the server holds for us, the schematics it has from us, and scratch space for the live queue
+    private final PlanState sent = new PlanState();
+    /** Client: when the first update after the last reliable message was sent. */
+    private long updatedSince;
+    private final StampCache sentStamps;
+    private final LongSeq current = new LongSeq();
+    // Client: plans of other players as last shown
+    private final IntMap<PlanDecoder.Decoded> shown = new IntMap<>();
+    // Client: queues we put on other players' units, the only ones we may take back
+    private final IntMap<Queue<BuildPlan>> assigned = new IntMap<>();
+    // Client: players whose plans the server only summarizes for us
+    private final IntMap<Summary> summaries = new IntMap<>();
+    // Client: tiles last reported as seen, see reportView
+    private boolean viewReported;
+    private int viewMinX, viewMinY, viewMaxX, viewMaxY;
+    private long lastViewReport;
+    private final Cons<PlanDecoder.Decoded> show = this::show, drop = this::drop;
+    private int nextTransfer, generation, batches;
+    private long lastExpire;
+
+    // Client: spatial index over the remote plans, created once content is loaded
+    private PlanIndex index;
+
+    private final PlanBuffer out = new PlanBuffer();
+    private final PlanBuffer chunk = new PlanBuffer();
+    private final PlanBuffer summaryIn = new PlanBuffer(0);
+
+    public PlanSync(NetBridge net) {
+        this(net, null, Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "PlanDecoder");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * @param index index to keep remote plans in, or null for one built from the loaded content
+     * @param executor runs decoding, one task at a time and in order
+     */
+    public PlanSync(NetBridge net, PlanIndex index, Executor executor) {
+        this.net = net;
+        this.index = index;
+        int[] blockSizes = index == null ? null : index.blockSizes();
+        sentStamps = new StampCache(StampCache.CAPACITY, blockSizes);
+        decoder = new PlanDecoder(executor, this::buildQueue, pool::discard, blockSizes, net::millis);
+    }
+
+    public void reset() {
+        sent.clear();
+        sentStamps.clear();
+        shown.clear();
+        assigned.clear();
+        summaries.clear();
+        viewReported = false;
+        pool.clear();
+        decoder.reset(++generation);
+        if (index != null) index.clear();
+    }
+
+    public PlanIndex index() {
+        if (index == null) index = PlanIndex.fromContent();
+        return index;
+    }
+
+    /** Plans last shown for a player, or null if none were. */
+    public LongSeq plans(int pid) {
+        PlanDecoder.Decoded decoded = shown.get(pid);
+        return decoded == null ? null : decoded.plans;
+    }
+
+    /** Summaries of the players whose plans aren't sent to us in detail, by player id. */
+    public IntMap<Summary> summaries() {
+        return summaries;
+    }
+
+    /** Drops everything received for a player, e.g. after they left. */
+    public void forget(int pid) {
+        shown.remove(pid);
+        assigned.remove(pid);
+        summaries.remove(pid);
+        decoder.forget(pid);
+        if (index != null) index.forget(pid);
+    }
+
+    /** Version of the plans last shown for a player, or 0 if none were. */
+    public int version(int pid) {
+        PlanDecoder.Decoded decoded = shown.get(pid);
+        return decoded == null ? 0 : decoded.version;
+    }
+
+    /** Sends the local queue to the server if it differs from what was last sent. */
+    public void updateLocal(Queue<BuildPlan> plans) {
+        current.clear();
+        for (BuildPlan plan : plans) {
+            if (current.size >= PlanCodec.MAX_PLANS) break;
+            current.add(pack(plan));
+        }
+        sendCurrent();
+    }
+
+    /** Same as {@link #updateLocal(Queue)} for packed plans, see {@link PlanCodec}. */
+    public void updateLocal(LongSeq plans) {
+        current.clear();
+        for (int i = 0; i < plans.size && i < PlanCodec.MAX_PLANS; i++) {
+            current.add(plans.items[i]);
+        }
+        sendCurrent();
+    }
+
+    private void sendCurrent() {
+        if (sent.matches(current)) return;
+
+        // Only sync as much of the queue as fits in one transfer, so any state the server
+        // holds for us can always be resent.
+        int version = sent.version + 1;
+        current.size = PlanCodec.keyframePlans(version, current, PlanChunks.MAX_TRANSFER);
+        if (sent.matches(current)) return;
+
+        boolean due = sent.updated() && net.millis() - updatedSince >= PlanCodec.CHECKPOINT_INTERVAL;
+        if (!due && PlanRelay.unreliableUpdates() && PlanCodec.writeUpdate(out, chunk, sent, version, current)) {
+            if (!sent.updated()) updatedSince = net.millis();
+            sent.update(current, current.size, version);
+            net.sendServerUnreliable("multiplayerpause-syncplans", out.toBytes());
+            return;
+        }
+        checkpoint(current, version);
+    }
+
+    /** Reliably sends {@code plans} as a delta against the last reliable message. */
+    private void checkpoint(LongSeq plans, int version) {
+        out.reset();
+        PlanCodec.writeDelta(out, sent.baseVersion, version, sent.base, plans, sentStamps);
+        if (out.position > PlanChunks.MAX_TRANSFER) {
+            // Schematic bodies can make a delta bigger than the keyframe, which always fits
+            sentStamps.rollback();
+            out.reset();
+            PlanCodec.writeKeyframe(out, version, plans, PlanChunks.MAX_TRANSFER);
+        } else {
+            sentStamps.commit();
+        }
+        sent.set(plans, plans.size, version);
+        send();
+    }
+
+    /** Sends the message in {@link #out}, split into chunks if it doesn't fit in one packet. */
+    private void send() {
+        if (out.position <= PlanCodec.MAX_PAYLOAD) {
+            net.sendServer("multiplayerpause-syncplans", out.toBytes());
+            return;
+        }
+        int transfer = ++nextTransfer;
+        for (int i = 0, count = PlanChunks.count(out.position); i < count; i++) {
+            chunk.reset();
+            PlanChunks.writeChunk(chunk, transfer, i, out.bytes, out.position);
+            net.sendServer("multiplayerpause-syncplans", chunk.toBytes());
+        }
+    }
+
+    /** Resends our whole queue, used when the server's mirror no longer matches what we think it holds. */
+    public void sendKeyframe() {
+        // The server may have asked because it dropped a schematic we refer to, so send bodies again from now on
+        sentStamps.clear();
+        int version = sent.version + 1;
+        out.reset();
+        int count = PlanCodec.writeKeyframe(out, version, sent.plans, PlanChunks.MAX_TRANSFER);
+        sent.set(sent.plans, count, version);
+        send();
+    }
+
+    /**
+     * Client: tells the server which tiles we see, so it only sends plans near them in detail. Reports some more
+     * than that so small camera moves don't need a new report.
+     */
+    public void reportView(int minX, int minY, int maxX, int maxY) {
+        long now = net.millis();
+        int marginX = Math.max(viewMargin, (maxX - minX) / 2), marginY = Math.max(viewMargin, (maxY - minY) / 2);
+        boolean inside = viewReported && minX >= viewMinX && minY >= viewMinY && maxX <= viewMaxX && maxY <= viewMaxY;
+        // After zooming in a lot most of the reported view is out of sight
+        boolean zoomed = inside && viewMaxX - viewMinX > 2 * (maxX - minX + 2 * marginX);
+        if (inside && !zoomed && now - lastViewReport < viewRefresh) return;
+        if (now - lastViewReport < viewInterval) return;
+
+        viewReported = true;
+        lastViewReport = now;
+        viewMinX = minX - marginX;
+        viewMinY = minY - marginY;
+        viewMaxX = maxX + marginX;
+        viewMaxY = maxY + marginY;
+        net.sendServer("multiplayerpause-planview", viewMinX + " " + viewMinY + " " + viewMaxX + " " + viewMaxY);
+    }
+
+    /** Client: asks the server for every plan we may see again, after {@link #reportView}. */
+    public void clearView() {
+        if (!viewReported) return;
+        viewReported = false;
+        net.sendServer("multiplayerpause-planview", "");
+    }
+
+    /** Client: the server summarized plans it doesn't send us in detail (anymore), see {@link PlanRelay}. */
+    public void handleSummary(byte[] data) {
+        PlanBuffer in = summaryIn.wrap(data);
+        try {
+            while (in.hasRemaining()) {
+                int pid = in.readVarInt(), count = in.readVarInt();
+                if (count <= 0) {
+                    summaries.remove(pid);
+                } else {
+                    Summary summary = summaries.get(pid);
+                    if (summary == null) summaries.put(pid, summary = new Summary());
+                    summary.count = count;
+                    summary.batch = batches;
+                    summary.minX = in.readZigZag();
+                    summary.minY = in.readZigZag();
+                    summary.maxX = summary.minX + in.readVarInt();
+                    summary.maxY = summary.minY + in.readVarInt();
+                }
+
+                // Any detailed plans we had or are still decoding are out of date now
+                decoder.clear(pid);
+            }
+        } catch (IllegalStateException e) {
+            // Ignore malformed summaries
+        }
+    }
+
+    /** Client: the server relayed a batch of other players' queue changes, see {@link PlanRelay}. Decoded off the game thread. */
+    public void handleUpdate(byte[] data) {
+        decoder.submit(data, net.localPlayer(), ++batches);
+    }
+
+    /**
+     * Client: shows plans the decode thread finished, sends the keyframe requests it wants and follows our updates
+     * with a reliable message once it is time. Called every frame.
+     */
+    public void update() {
+        if (sent.updated() && net.millis() - updatedSince >= PlanCodec.CHECKPOINT_INTERVAL) {
+            checkpoint(sent.plans, sent.version + 1);
+        }
+        pool.update();
+        decoder.take(generation, show, drop);
+        for (Integer pid = decoder.pollResync(); pid != null; pid = decoder.pollResync()) {
+            net.sendServer("multiplayerpause-planresync", String.valueOf(pid));
+        }
+
+        long now = net.millis();
+        if (now - lastExpire >= expireInterval) {
+            lastExpire = now;
+            decoder.scheduleExpire();
+        }
+    }
+
+    /** Decoded queues that a newer one replaced before they were shown. */
+    public long superseded() {
+        return decoder.superseded;
+    }
+
+    /** Build plans created for other players' units because none could be reused. */
+    public long plansAllocated() {
+        return pool.allocated;
+    }
+
+    /** Build plans reused from queues taken off other players' units. */
+    public long plansReused() {
+        return pool.reused;
+    }
+
+    /** Build plans the engine had started on when their queue was taken back, which are never reused. */
+    public long plansDropped() {
+        return pool.dropped;
+    }
+
+    private void show(PlanDecoder.Decoded decoded) {
+        // Plans from batches after the summary replace it
+        Summary summary = summaries.get(decoded.pid);
+        if (summary != null && decoded.batch > summary.batch) summaries.remove(decoded.pid);
+        PlanDecoder.Decoded previous = shown.put(decoded.pid, decoded);
+        // Only what changed since the plans shown last is moved in the index
+        if (previous != null) {
+            index().update(decoded.pid, previous.plans, decoded.plans);
+        } else {
+            index().update(decoded.pid, decoded.plans);
+        }
+        applied(decoded.pid, decoded.plans, decoded.queue);
+    }
+
+    private void drop(PlanDecoder.Decoded decoded) {
+        if (decoded.queue != null) pool.retire(decoded.queue);
+    }
+
+    /**
+     * Called when the plans shown for a player changed, including while a transfer streams in; shows them on the
+     * player's unit by swapping in the queue the decode thread built.
+     */
+    protected void applied(int pid, LongSeq plans, Queue<BuildPlan> queue) {
+        if (queue == null) return;
+        Player p = Groups.player.getByID(pid);
+        Unit unit = p == null ? null : p.unit();
+        if (unit == null) {
+            pool.retire(queue);
+            return;
+        }
+
+        // Only recycle the queue if it is still the one we gave this unit; after a respawn or anything else
+        // replacing it, the old queue is left to whoever has it now
+        Queue<BuildPlan> previous = assigned.get(pid);
+        if (previous != null && unit.plans == previous) pool.retire(previous);
+        unit.plans = queue;
+        assigned.put(pid, queue);
+    }
+
+    /** Builds the queue for a player's unit from packed plans, reusing retired ones. Called on the decode thread. */
+    protected Queue<BuildPlan> buildQueue(LongSeq plans) {
+        return pool.obtain(plans);
+    }
+
+    static long pack(BuildPlan plan) {
+        return PlanCodec.pack(plan.x, plan.y, plan.rotation, plan.block == null ? -1 : plan.block.id, plan.breaking);
+    }
+}
@@ -0,0 +1,115 @@
+package pauseMod;
+
+import arc.struct.Queue;
+import mindustry.entities.units.BuildPlan;
+import mindustry.gen.Unit;
+
+/**
+ * Cheap change detection for the local player's plan queue, so it is only packed and diffed when it changed.
+ *
+ * Structural changes (adding, removing, clearing plans) are counted as they happen by swapping the unit's
+ * queue for a {@link TrackedQueue}. Plans edited in place, such as dragging or rotating an existing plan,
+ * don't touch the queue, so they are caught by an allocation-free fingerprint that is only checked every
+ * few frames.
+ */
+public class PlanTracker {
+    private static final int fingerprintInterval = 10;
+
+    private TrackedQueue<BuildPlan> queue;
+    private int seenModifications;
+    private long fingerprint;
+    private int frames;
+    private boolean invalid = true;
+
+    /** Bumped every time the plans change. */
+    public int version;
+
+    /** Forces the next {@link #poll} to report a change, e.g. after the sync state was reset. */
+    public void invalidate() {
+        invalid = true;
+    }
+
+    /** @return whether the unit's plans changed since the last call */
+    public boolean poll(Unit unit) {
+        if (unit.plans != queue) {
+            // New unit, or something replaced the queue: take it over
+            queue = new TrackedQueue<>(unit.plans);
+            unit.plans = queue;
+            invalid = true;
+        }
+
+        if (invalid || queue.modifications != seenModifications) {
+            invalid = false;
+            seenModifications = queue.modifications;
+            fingerprint = fingerprint(queue);
+            version++;
+            return true;
+        }
+
+        if (++frames % fingerprintInterval == 0) {
+            long current = fingerprint(queue);
+            if (current != fingerprint) {
+                fingerprint = current;
+                version++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long fingerprint(Queue<BuildPlan> plans) {
+        long hash = plans.size;
+        for (int i = 0; i < plans.size; i++) {
+            hash = hash * 31 + PlanSync.pack(plans.get(i));
+        }
+        return hash;
+    }
+
+    /** Queue that counts structural modifications. */
+    static class TrackedQueue<T> extends Queue<T> {
+        int modifications;
+
+        TrackedQueue(Queue<T> source) {
+            super(Math.max(source.size, 1));
+            for (int i = 0; i < source.size; i++) {
+                super.addLast(source.get(i));
+            }
+        }
+
+        @Override
+        public void addLast(T object) {
+            modifications++;
+            super.addLast(object);
+        }
+
+        @Override
+        public void addFirst(T object) {
+            modifications++;
+            super.addFirst(object);
+        }
+
+        @Override
+        public T removeFirst() {
+            modifications++;
+            return super.removeFirst();
+        }
+
+        @Override
+        public T removeLast() {
+            modifications++;
+            return super.removeLast();
+        }
+
+        @Override
+        public T removeIndex(int index) {
+            modifications++;
+            return super.removeIndex(index);
+        }
+
+        @Override
+        public void clear() {
+            modifications++;
+            super.clear();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package pauseMod;
+
+import arc.struct.IntMap;
+import arc.struct.LongSeq;
+import arc.struct.Queue;
+import arc.struct.Seq;
+import mindustry.entities.units.BuildPlan;
+import mindustry.type.ItemStack;
+import mindustry.world.Block;
+
+import static mindustry.Vars.*;
+
+/**
+ * Item requirements of every player's plan queue, kept in int arrays indexed by item id.
+ *
+ * Each player has a reused slot; a slot is only recomputed when that player's queue changed (different queue,
+ * size or version), and the totals are patched by subtracting the old slot and adding the new one, so nothing
+ * is recomputed or allocated while the queues stay the same.
+ *
+ * Usage per frame: {@link #begin()}, {@link #update} for every player, then {@link #end()}.
+ */
+public class RequirementTracker {
+    /** Per block id: item ids and amounts, interleaved. */
+    private final int[][] blockCosts;
+    private final int itemCount;
+    private final IntMap<Slot> slots = new IntMap<>();
+    private final Seq<Slot> free = new Seq<>(), stale = new Seq<>();
+    private boolean changed;
+
+    /** Summed requirements of all players, indexed by item id. */
+    public final int[] totals;
+    /** Slots that were updated this frame and have at least one requirement, in update order. */
+    public final Seq<Slot> active = new Seq<>();
+
+    public static class Slot {
+        public int playerId;
+        /** Requirements of this player's plans, indexed by item id. */
+        public int[] amounts;
+        public boolean any;
+
+        Object queue;
+        int size = -1;
+        int version;
+        boolean seen;
+    }
+
+    public RequirementTracker(int[][] blockCosts, int itemCount) {
+        this.blockCosts = blockCosts;
+        this.itemCount = itemCount;
+        totals = new int[itemCount];
+    }
+
+    /** Builds the cost table from the loaded content. */
+    public static RequirementTracker fromContent() {
+        Seq<Block> blocks = content.blocks();
+        int[][] costs = new int[blocks.size][];
+        for (int i = 0; i < blocks.size; i++) {
+            ItemStack[] requirements = blocks.get(i).requirements;
+            int[] cost = new int[requirements == null ? 0 : requirements.length * 2];
+            for (int j = 0; j < cost.length; j += 2) {
+                cost[j] = requirements[j / 2].item.id;
+                cost[j + 1] = requirements[j / 2].amount;
+            }
+            costs[blocks.get(i).id] = cost;
+        }
+        return new RequirementTracker(costs, content.items().size);
+    }
+
+    public int itemCount() {
+        return itemCount;
+    }
+
+    public void begin() {
+        changed = false;
+        active.clear();
+        for (Slot slot : slots.values()) {
+            slot.seen = false;
+        }
+    }
+
+    /** @param version anything that changes whenever the queue's contents change, or a constant if unknown */
+    public void update(int playerId, Queue<BuildPlan> plans, int version) {
+        Slot slot = slot(playerId);
+        if (slot.queue != plans || slot.size != plans.size || slot.version != version) {
+            remove(slot);
+            for (int i = 0; i < plans.size; i++) {
+                BuildPlan plan = plans.get(i);
+                if (!plan.breaking && plan.block != null) add(slot, plan.block.id);
+            }
+            commit(slot, plans, plans.size, version);
+        }
+        activate(slot);
+    }
+
+    /** Same as {@link #update(int, Queue, int)} for packed plans, see {@link PlanCodec}. */
+    public void update(int playerId, LongSeq plans, int version) {
+        Slot slot = slot(playerId);
+        if (slot.queue != plans || slot.size != plans.size || slot.version != version) {
+            remove(slot);
+            for (int i = 0; i < plans.size; i++) {
+                long plan = plans.items[i];
+                int block = PlanCodec.block(plan);
+                if (!PlanCodec.breaking(plan) && block >= 0) add(slot, block);
+            }
+            commit(slot, plans, plans.size, version);
+        }
+        activate(slot);
+    }
+
+    /** Drops players that were not updated since {@link #begin()}. @return whether any requirement changed */
+    public boolean end() {
+        stale.clear();
+        for (IntMap.Entry<Slot> entry : slots) {
+            if (!entry.value.seen) stale.add(entry.value);
+        }
+        for (int i = 0; i < stale.size; i++) {
+            Slot slot = stale.get(i);
+            remove(slot);
+            slots.remove(slot.playerId);
+            free.add(slot);
+        }
+        return changed;
+    }
+
+    private Slot slot(int playerId) {
+        Slot slot = slots.get(playerId);
+        if (slot == null) {
+            slot = free.isEmpty() ? new Slot() : free.pop();
+            slot.playerId = playerId;
+            slot.queue = null;
+            slot.size = -1;
+            if (slot.amounts == null) slot.amounts = new int[itemCount];
+            slots.put(playerId, slot);
+        }
+        slot.seen = true;
+        return slot;
+    }
+
+    private void add(Slot slot, int block) {
+        if (block >= blockCosts.length) return;
+        int[] cost = blockCosts[block];
+        for (int i = 0; i < cost.length; i += 2) {
+            slot.amounts[cost[i]] += cost[i + 1];
+        }
+    }
+
+    private void remove(Slot slot) {
+        int[] amounts = slot.amounts;
+        for (int i = 0; i < itemCount; i++) {
+            if (amounts[i] != 0) {
+                totals[i] -= amounts[i];
+                amounts[i] = 0;
+                changed = true;
+            }
+        }
+        slot.any = false;
+    }
+
+    private void commit(Slot slot, Object queue, int size, int version) {
+        int[] amounts = slot.amounts;
+        for (int i = 0; i < itemCount; i++) {
+            if (amounts[i] != 0) {
+                totals[i] += amounts[i];
+                slot.any = true;
+                changed = true;
+            }
+        }
+        slot.queue = queue;
+        slot.size = size;
+        slot.version = version;
+    }
+
+    private void activate(Slot slot) {
+        if (slot.any) active.add(slot);
+    }
+}
@@ -7,30 +7,42 @@ import arc.scene.event.InputEvent;
 import arc.scene.event.Touchable;
 import arc.scene.ui.Label;
 import arc.scene.ui.layout.Table;
-import arc.struct.ObjectMap;
+import arc.struct.IntSeq;
+import arc.struct.Seq;
 import arc.util.Align;
 
-import mindustry.content.Items;
-import mindustry.entities.units.BuildPlan;
-import mindustry.gen.Building;
 import mindustry.gen.Groups;
 import mindustry.gen.Player;
-import mindustry.type.Item;
-import mindustry.type.ItemStack;
 import mindustry.ui.Fonts;
 import mindustry.ui.Styles;
 
+import java.util.Arrays;
+
 import static mindustry.Vars.*;
 
 public class ResourcePreviewUI {
     private Table table;
     private Table contentTable; // New field for the content table
-    private ObjectMap<Player, ObjectMap<Item, Integer>> playerRequirements = new ObjectMap<>();
-    private ObjectMap<Item, Integer> totalRequirements = new ObjectMap<>();
-    private ObjectMap<Item, Integer> coreResources = new ObjectMap<>();
+    private final PlanSync planSync;
+    private final PlanTracker planTracker;
+    private RequirementTracker requirements; // Created on first use, once content is loaded
+    private CoreInventory inventory; // Created on first use, once content is loaded
     private boolean visible = false;
 
-    public ResourcePreviewUI() {
+    // Retained layout: what is currently shown and the labels that get updated in place
+    private final IntSeq layout = new IntSeq(), shownLayout = new IntSeq();
+    private final Seq<Label> amountLabels = new Seq<>(), footerLabels = new Seq<>();
+    private int[] shownAmounts, shownRequired, shownAvailable;
+    private final StringBuilder text = new StringBuilder();
+    private boolean resize;
+    // Deferrable work, see FrameScheduler: plans change the requirements, cores the footer's available amounts
+    private final FrameScheduler.Task requirementsTask, footerTask;
+
+    public ResourcePreviewUI(PlanSync planSync, PlanTracker planTracker, FrameScheduler scheduler) {
+        this.planSync = planSync;
+        this.planTracker = planTracker;
+        requirementsTask = scheduler.add("resource requirements", FrameScheduler.NORMAL, 250, this::refreshRequirements);
+        footerTask = scheduler.add("resource footer", FrameScheduler.LOW, 1000, this::refreshFooter);
         build();
     }
 
@@ -72,6 +84,7 @@ public class ResourcePreviewUI {
         table.setPosition(x, y);
     }
 
+    /** Shows or hides the table, and asks for its contents to be refreshed while it is shown. Called every frame. */
     public void update() {
         // Check if should show
         boolean shouldShow = shouldShow();
@@ -82,50 +95,56 @@ public class ResourcePreviewUI {
         }
 
         if (!visible) return;
+        requirementsTask.request();
+        footerTask.request();
+    }
 
-        // Calculate resources to check for changes
+    private void refreshRequirements() {
+        if (!visible) return;
+        if (inventory == null) getCoreResources();
         boolean changed = calculateRequiredResources();
-        
-        // Also check if core resources changed (less critical but good for numbers)
-        // For performance, maybe only update text if numbers change, but rebuilding table is easier.
-        // We will rebuild if plans changed OR every 30 frames to update core resources numbers?
-        // Or just rebuild if plans changed.
-        
-        // Let's implement a hash/changed check
-        if (changed) {
-            getCoreResources(); // Only needed when we rebuild
+
+        // The scene graph is retained: it is only rebuilt when the set of players or items shown changes.
+        // Otherwise the existing labels are updated in place, which also keeps the element being dragged alive.
+        if (changed || shownLayout.isEmpty()) buildLayout(layout);
+        if (!sameLayout()) {
+            shownLayout.clear();
+            for (int i = 0; i < layout.size; i++) shownLayout.add(layout.items[i]);
             rebuildTable();
-        } else {
-             // Just update numbers if table exists? 
-             // For now, let's stick to rebuild only on plan changes.
-             // But core resources (available amount) change often.
-             // If we don't rebuild, the available numbers won't update.
-             
-             // Issue: If we rebuild every frame, drag breaks.
-             // Solution: Update existing labels instead of clearing table.
-             
-             // BUT, implementing update-existing logic is complex with dynamic grid.
-             // Alternative: only rebuild if something actually changed.
-             // Core resources change often.
-             
-             // FIX FOR DRAG:
-             // The issue with drag and rebuild is likely that rebuild changes the layout/size/pointers.
-             // If we use keep the table structure and just update text, it should be fine.
-             
-             // Let's try to update CoreResources every 60 frames if no plan change?
-             // Or update core resources always, but only rebuild table if plans change.
-             
-             // Actually, if we just want to fix drag, we can make the rebuild check if we are currently dragging?
-             // No, that's hacky.
-             
-             // Real solution:
-             // 1. Calculate reqs.
-             // 2. Check if structure needs change (keys of maps).
-             // 3. If keys same, update text of existing labels.
-             // 4. If keys diff, rebuild.
-             
-             updateTableContent();
         }
+        refreshLabels();
+    }
+
+    private void refreshFooter() {
+        if (!visible) return;
+        getCoreResources();
+        refreshLabels();
+    }
+
+    /** Writes what the table shows: per player their id then item ids, followed by the footer's item ids. */
+    private void buildLayout(IntSeq out) {
+        out.clear();
+        if (requirements == null) return;
+        for (int i = 0; i < requirements.active.size; i++) {
+            RequirementTracker.Slot slot = requirements.active.get(i);
+            out.add(-1);
+            out.add(slot.playerId);
+            for (int id = 0; id < slot.amounts.length; id++) {
+                if (slot.amounts[id] > 0) out.add(id);
+            }
+        }
+        out.add(-1);
+        for (int id = 0; id < requirements.totals.length; id++) {
+            if (requirements.totals[id] > 0) out.add(id);
+        }
+    }
+
+    private boolean sameLayout() {
+        if (layout.size != shownLayout.size) return false;
+        for (int i = 0; i < layout.size; i++) {
+            if (layout.items[i] != shownLayout.items[i]) return false;
+        }
+        return true;
     }
 
     private boolean shouldShow() {
@@ -137,134 +156,56 @@ public class ResourcePreviewUI {
     }
 
     private boolean calculateRequiredResources() {
-        // We need to return true if values changed.
-        // But for structure we need to check if keys changed.
-        // Let's just recalculate always and use the updateTableContent to diff.
-        
-        playerRequirements.clear();
-        totalRequirements.clear();
-        
-        boolean hasAnyPlan = false;
+        if (requirements == null) requirements = RequirementTracker.fromContent();
 
-        // Iterate through all players
+        // Only players whose queue changed since last frame are recomputed, see RequirementTracker
+        requirements.begin();
         for (Player p : Groups.player) {
             if (p.unit() != null && p.unit().plans != null && !p.unit().plans.isEmpty()) {
-                ObjectMap<Item, Integer> pReq = new ObjectMap<>();
-                boolean pHasPlans = false;
-
-                for (BuildPlan plan : p.unit().plans) {
-                    if (!plan.breaking && plan.block != null) {
-                        ItemStack[] requirements = plan.block.requirements;
-                        if (requirements != null) {
-                            for (ItemStack stack : requirements) {
-                                pHasPlans = true;
-                                int pCurrent = pReq.get(stack.item, 0);
-                                pReq.put(stack.item, pCurrent + stack.amount);
-
-                                int tCurrent = totalRequirements.get(stack.item, 0);
-                                totalRequirements.put(stack.item, tCurrent + stack.amount);
-                            }
-                        }
-                    }
-                }
-                
-                if (pHasPlans) {
-                    playerRequirements.put(p, pReq);
-                    hasAnyPlan = true;
-                }
+                int version = p == player ? planTracker.version : planSync.version(p.id);
+                requirements.update(p.id, p.unit().plans, version);
             }
         }
-        return hasAnyPlan;
+        return requirements.end();
     }
 
     private void getCoreResources() {
-        coreResources.clear();
-
-        if (player == null || player.team() == null) return;
-
-        // Get nearest core
-        Building core = player.team().core();
-        if (core != null && core.items != null) {
-            // Get all items from core
-            for (Item item : content.items()) {
-                int amount = core.items.get(item);
-                if (amount > 0) {
-                    coreResources.put(item, amount);
-                }
-            }
-        }
+        if (inventory == null) inventory = CoreInventory.fromContent();
+        // Summed over all of the team's cores, and only re-read when the cores' contents changed
+        inventory.update(player == null ? null : player.team());
     }
 
-    private void updateTableContent() {
-        getCoreResources();
-        
-        // Simply clearing and rebuilding every frame Kills drag because the element under mouse is destroyed and recreated.
-        // Input system loses focus.
-        
-        // Strategy: 
-        // 1. If structure matches exactly (same players, same items), update labels.
-        // 2. Else, rebuild.
-        
-        // To implement this simply without complex diffing code:
-        // We can just rebuild every X frames, OR checking if we are dragging?
-        // No.
-        
-        // Let's Try: Snapshot the last state.
-        // Or easier:
-        // Identify if the layout is stable.
-        
-        // Actually, the easiest fix for "Drag doesn't work" when content updates is to put the drag listener on a Container that does NOT get cleared.
-        // The `table` variable IS the container.
-        // But `table.clear()` removes children.
-        // Does it remove listeners? No.
-        // BUT if the drag behavior depends on hitting a child (unlikely for Table, unless strict hit test), 
-        // or if layout rebuild moves the table?
-        
-        // PROPER FIX:
-        // Create a parent 'container' table that has the drag listener.
-        // Create a child 'content' table inside the container.
-        // Only clear the 'content' table.
-        // The container stays stable.
-        
-        // BUT, we already added listener to `table`.
-        // `table.clear()` preserves listeners.
-        
-        // Maybe the problem is `clampToScreen` calling `setPosition` which interferes with `moveBy` during the same frame sequence?
-        // Or `pack()` resetting size?
-        
-        // Let's do the Container approach. It is robust.
-        rebuildTable(); 
-    }
-    
     private void rebuildTable() {
         contentTable.clear(); // Only clear content, not the main table with listener
+        amountLabels.clear();
+        footerLabels.clear();
         
         // Drag hint top
         contentTable.add("(Drag to move)").color(Color.gray).padBottom(4f).get().setFontScale(0.75f);
         contentTable.row();
 
-        if (playerRequirements.isEmpty()) {
+        if (requirements == null || requirements.active.isEmpty()) {
             contentTable.add("No active plans").color(Color.lightGray).pad(10f);
         } else {
             // 1. Per Player Sections
-            for (ObjectMap.Entry<Player, ObjectMap<Item, Integer>> entry : playerRequirements) {
-                Player p = entry.key;
-                ObjectMap<Item, Integer> reqs = entry.value;
+            for (int i = 0; i < requirements.active.size; i++) {
+                RequirementTracker.Slot slot = requirements.active.get(i);
+                Player p = Groups.player.getByID(slot.playerId);
+                Color color = p == null ? Color.lightGray : p.color;
 
                 // Player Name Header
-                contentTable.add(p.name).color(p.color).left().padTop(6f).row();
-                contentTable.image().color(p.color).fillX().height(2f).padBottom(4f).row();
+                contentTable.add(p == null ? "Unknown player" : p.name).color(color).left().padTop(6f).row();
+                contentTable.image().color(color).fillX().height(2f).padBottom(4f).row();
 
-                // Grid for items (max 3 cols)
+                // Grid for items (max 3 cols), amounts are filled in by refreshLabels
                 Table grid = new Table();
                 int col = 0;
-                for (ObjectMap.Entry<Item, Integer> itemEntry : reqs) {
-                    Item item = itemEntry.key;
-                    int amount = itemEntry.value;
+                for (int id = 0; id < slot.amounts.length; id++) {
+                    if (slot.amounts[id] <= 0) continue;
 
                     // Icon + Amount
-                    grid.image(item.uiIcon).size(16f).padRight(4f);
-                    grid.add(String.valueOf(amount)).color(Color.white).padRight(12f).left();
+                    grid.image(content.item(id).uiIcon).size(16f).padRight(4f);
+                    amountLabels.add(grid.add("").color(Color.white).padRight(12f).left().get());
 
                     col++;
                     if (col % 3 == 0) grid.row();
@@ -280,28 +221,85 @@ public class ResourcePreviewUI {
             
             Table footerGrid = new Table();
             int col = 0;
-            for (ObjectMap.Entry<Item, Integer> itemEntry : totalRequirements) {
-                Item item = itemEntry.key;
-                int required = itemEntry.value;
-                int available = coreResources.get(item, 0);
+            for (int id = 0; id < requirements.totals.length; id++) {
+                if (requirements.totals[id] <= 0) continue;
 
-                // Format: All Req / All Avail
-                // Color red if Req > Avail
-                Color color = available >= required ? Color.white : Color.scarlet;
-                
-                footerGrid.image(item.uiIcon).size(16f).padRight(4f);
-                footerGrid.add(required + " / " + available).color(color).padRight(12f).left();
+                footerGrid.image(content.item(id).uiIcon).size(16f).padRight(4f);
+                footerLabels.add(footerGrid.add("").padRight(12f).left().get());
 
                 col++;
                 if (col % 3 == 0) footerGrid.row();
             }
             contentTable.add(footerGrid).left().row();
         }
-        
-        // Pack content table, then pack main table
-        contentTable.pack();
-        table.pack();
-        clampToScreen();
+
+        // Force every label to be written on the next refresh
+        shownAmounts = ensureSize(shownAmounts, amountLabels.size);
+        shownRequired = ensureSize(shownRequired, footerLabels.size);
+        shownAvailable = ensureSize(shownAvailable, footerLabels.size);
+        Arrays.fill(shownAmounts, -1);
+        Arrays.fill(shownRequired, -1);
+        Arrays.fill(shownAvailable, -1);
+        resize = true;
+    }
+
+    /** Writes changed numbers into the existing labels, reusing one text buffer. */
+    private void refreshLabels() {
+        if (requirements == null) return;
+
+        int index = 0;
+        for (int i = 0; i < requirements.active.size; i++) {
+            int[] amounts = requirements.active.get(i).amounts;
+            for (int id = 0; id < amounts.length; id++) {
+                int amount = amounts[id];
+                if (amount <= 0) continue;
+                if (shownAmounts[index] != amount) {
+                    shownAmounts[index] = amount;
+                    text.setLength(0);
+                    text.append(amount);
+                    setText(amountLabels.get(index), text);
+                }
+                index++;
+            }
+        }
+
+        index = 0;
+        for (int id = 0; id < requirements.totals.length; id++) {
+            int required = requirements.totals[id];
+            if (required <= 0) continue;
+            int available = inventory.amounts[id];
+            if (shownRequired[index] != required || shownAvailable[index] != available) {
+                shownRequired[index] = required;
+                shownAvailable[index] = available;
+
+                // Format: All Req / All Avail
+                // Color red if Req > Avail
+                Label label = footerLabels.get(index);
+                text.setLength(0);
+                text.append(required).append(" / ").append(available);
+                setText(label, text);
+                label.setColor(available >= required ? Color.white : Color.scarlet);
+            }
+            index++;
+        }
+
+        if (resize) {
+            // Pack content table, then pack main table
+            resize = false;
+            contentTable.pack();
+            table.pack();
+            clampToScreen();
+        }
+    }
+
+    private void setText(Label label, StringBuilder value) {
+        // Labels only need to be re-measured when their width can change
+        if (label.getText().length() != value.length()) resize = true;
+        label.setText(value);
+    }
+
+    private static int[] ensureSize(int[] array, int size) {
+        return array != null && array.length >= size ? array : new int[size];
     }
 
     // Removed old updatePosition method as it is replaced by drag logic
@@ -0,0 +1,204 @@
+package pauseMod;
+
+import arc.struct.LongSeq;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Schematic bodies by content hash, so a group of plans that was sent before can be sent as a reference
+ * ({@link PlanCodec#OP_STAMP}) instead of plan by plan.
+ *
+ * A body is a group's plans with one of the four rotations undone and moved to the origin. {@link #describe} tries
+ * all four and keeps the one with the lowest hash, so the same schematic has the same body wherever it is placed
+ * and however it is turned. Rotating turns every plan a quarter around the origin like the game does, including
+ * the half tile offset of even sized blocks, which is why the cache needs block sizes.
+ *
+ * Readers keep a cache of the bodies they were sent. Writers keep one of the bodies they sent to a receiver, so
+ * they know when a reference is enough; bodies written to a message that was then held back are taken out again
+ * with {@link #rollback}. Both are bounded and drop the least recently used body first, and a reference to a body
+ * the reader no longer has makes it ask for a keyframe, which never uses references. A reader may hold more bodies
+ * than the writer thinks, e.g. after the writer cleared its cache, as long as it saw every body the writer holds
+ * defined or used after the ones the writer doesn't know about: those are then always the first it drops.
+ */
+public class StampCache {
+    /** Smallest group of plans sent as a stamp. */
+    public static final int MIN_PLANS = 16;
+    /** Largest body, which keeps the cache's memory bounded. */
+    public static final int MAX_PLANS = 4096;
+    /** Default number of bodies kept. */
+    public static final int CAPACITY = 128;
+    /** Bodies kept per player whose plans are relayed, on the server and on every client they are relayed to. */
+    public static final int PLAYER_CAPACITY = 32;
+
+    private final LinkedHashMap<Long, LongSeq> bodies;
+    private final LongSeq pending = new LongSeq();
+    private int[] blockSizes;
+
+    // Scratch space for describe
+    private final LongSeq turned = new LongSeq(), best = new LongSeq();
+
+    /** Result of the last successful {@link #describe}: the body, its hash and how to place it again. */
+    public final LongSeq body = new LongSeq();
+    public long hash;
+    public int turns, offsetX, offsetY;
+
+    // Statistics
+    public long hits, misses, evicted;
+
+    /** @param blockSizes size in tiles of each block, by block id, or null for the loaded content's */
+    public StampCache(int capacity, int[] blockSizes) {
+        this.blockSizes = blockSizes;
+        bodies = new LinkedHashMap<Long, LongSeq>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, LongSeq> eldest) {
+                if (size() <= capacity) return false;
+                evicted++;
+                return true;
+            }
+        };
+    }
+
+    private int[] sizes() {
+        if (blockSizes == null) blockSizes = PlanIndex.contentBlockSizes();
+        return blockSizes;
+    }
+
+    public int size() {
+        return bodies.size();
+    }
+
+    public void clear() {
+        bodies.clear();
+        pending.clear();
+    }
+
+    /** Whether the body is cached, counting it as used. */
+    public boolean contains(long hash) {
+        return get(hash, true) != null;
+    }
+
+    /**
+     * @param touch whether this counts as a use; previews of a message that is still arriving don't, so the order
+     * bodies are dropped in stays the same as on the writer's side
+     * @return the body, or null if it isn't cached
+     */
+    LongSeq get(long hash, boolean touch) {
+        LongSeq body = bodies.get(hash);
+        if (body == null) {
+            if (touch) misses++;
+            return null;
+        }
+        if (touch) {
+            hits++;
+            bodies.remove(hash);
+            bodies.put(hash, body);
+        }
+        return body;
+    }
+
+    /** Adds a body that was received, copying it. */
+    void put(long hash, LongSeq body) {
+        LongSeq copy = new LongSeq(Math.max(body.size, 1));
+        copy.addAll(body.items, 0, body.size);
+        bodies.remove(hash);
+        bodies.put(hash, copy);
+    }
+
+    /** Adds a body that was written to a message; it counts as pending until {@link #commit} or {@link #rollback}. */
+    void define(long hash, LongSeq body) {
+        put(hash, body);
+        pending.add(hash);
+    }
+
+    /** The bodies defined since the last commit reached the receiver. */
+    public void commit() {
+        pending.clear();
+    }
+
+    /** The bodies defined since the last commit were not sent after all. */
+    public void rollback() {
+        for (int i = 0; i < pending.size; i++) bodies.remove(pending.items[i]);
+        pending.clear();
+    }
+
+    /**
+     * Checks whether {@code count} plans starting at {@code start} look like a schematic: enough plans, all of them
+     * placing something and more than one kind of block, unlike a dragged line. If so, fills in {@link #body},
+     * {@link #hash}, {@link #turns} and the offset that {@link #place} needs to put them back where they were.
+     */
+    public boolean describe(LongSeq plans, int start, int count) {
+        if (count < MIN_PLANS || count > MAX_PLANS) return false;
+        int firstBlock = PlanCodec.block(plans.items[start]);
+        boolean mixed = false;
+        for (int i = start; i < start + count; i++) {
+            long plan = plans.items[i];
+            int block = PlanCodec.block(plan);
+            if (block == -1 || PlanCodec.breaking(plan)) return false;
+            mixed |= block != firstBlock;
+        }
+        if (!mixed) return false;
+
+        int[] sizes = sizes();
+        long bestHash = 0;
+        int bestTurns = -1;
+        for (int t = 0; t < 4; t++) {
+            // The body that, turned t times, gives these plans
+            turned.clear();
+            int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+            for (int i = start; i < start + count; i++) {
+                long plan = rotate(plans.items[i], (4 - t) & 3, sizes);
+                minX = Math.min(minX, PlanCodec.x(plan));
+                minY = Math.min(minY, PlanCodec.y(plan));
+                turned.add(plan);
+            }
+            for (int i = 0; i < turned.size; i++) turned.items[i] = translate(turned.items[i], -minX, -minY);
+
+            long h = PlanCodec.hash(turned);
+            if (bestTurns == -1 || Long.compareUnsigned(h, bestHash) < 0) {
+                bestHash = h;
+                bestTurns = t;
+                best.clear();
+                best.addAll(turned.items, 0, turned.size);
+            }
+        }
+
+        body.clear();
+        body.addAll(best.items, 0, best.size);
+        hash = bestHash;
+        turns = bestTurns;
+        long first = rotate(body.items[0], turns, sizes), placed = plans.items[start];
+        offsetX = PlanCodec.x(placed) - PlanCodec.x(first);
+        offsetY = PlanCodec.y(placed) - PlanCodec.y(first);
+        return true;
+    }
+
+    /** Appends {@code body} turned {@code turns} times and moved by the offset to {@code out}. */
+    void place(LongSeq body, int turns, int offsetX, int offsetY, LongSeq out) {
+        int[] sizes = sizes();
+        for (int i = 0; i < body.size; i++) {
+            out.add(translate(rotate(body.items[i], turns, sizes), offsetX, offsetY));
+        }
+    }
+
+    /** Turns a plan a quarter counterclockwise around the origin {@code turns} times, like rotating a schematic. */
+    static long rotate(long plan, int turns, int[] sizes) {
+        int x = PlanCodec.x(plan), y = PlanCodec.y(plan), block = PlanCodec.block(plan);
+        // Even sized blocks are centered half a tile up and right of their tile, so they land one tile off
+        int even = block >= 0 && block < sizes.length && sizes[block] % 2 == 0 ? 1 : 0;
+        for (int i = 0; i < turns; i++) {
+            int old = x;
+            x = -y - even;
+            y = old;
+        }
+        return PlanCodec.pack(x, y, (PlanCodec.rotation(plan) + turns) & 3, block, PlanCodec.breaking(plan));
+    }
+
+    private static long translate(long plan, int dx, int dy) {
+        return PlanCodec.pack(PlanCodec.x(plan) + dx, PlanCodec.y(plan) + dy, PlanCodec.rotation(plan), PlanCodec.block(plan), PlanCodec.breaking(plan));
+    }
+
+    public String stats() {
+        return size() + " schematics cached, " + hits + " hits, " + misses + " misses, " + evicted + " evicted";
+    }
+}
@@ -0,0 +1,390 @@
+package pauseMod;
+
+import arc.struct.IntMap;
+import arc.util.Log;
+import arc.util.Strings;
+import arc.util.io.Reads;
+import arc.util.io.ReusableByteInStream;
+import arc.util.io.ReusableByteOutStream;
+import arc.util.io.Writes;
+import mindustry.game.Team;
+import mindustry.gen.Building;
+import mindustry.io.TypeIO;
+import mindustry.world.Block;
+import mindustry.world.Tile;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import static mindustry.Vars.*;
+
+/**
+ * Incremental world resync, replacing the chat {@code /sync} command which reloads the whole world.
+ *
+ * The world is split into square regions. The client sends a hash of every region, the server compares them with
+ * its own and sends back only the regions that differ, which the client writes over its tiles. Regions hold the
+ * block of every tile and the full state of every building ({@link Building#writeAll}); floors and ores never
+ * change in game and are left out. Hashes only cover what both sides can agree on without sending it: block, team,
+ * rotation, config and a health bucket of every building. Items, power and progress of running buildings never
+ * hash the same on two machines, and serializing them made hashing the world a freeze of its own.
+ *
+ * Hash packet: byte FORMAT, varint width, varint height, varint region size, then an int hash per region, row by row.
+ * Region packet: byte FORMAT, then repeated {varint region index, varint first tile, varint length, tiles}. A region
+ * too big for one packet is sent in parts starting at later tiles; only a part holding a single building bigger than
+ * a packet is chunked with {@link PlanChunks}.
+ *
+ * Tiles are written row by row, as a sequence of varint tags whose low two bits tell what follows:
+ * <pre>
+ * RUN      tag = block id &lt;&lt; 2, varint tile count    tiles without a building
+ * BUILDING tag = block id &lt;&lt; 2 | 1, byte team, byte rotation, byte revision, varint length, Building.writeAll
+ * LINK     tag = 2, varint position of the center       other tiles of a multiblock
+ * </pre>
+ */
+public class WorldSync {
+    /** Differs from {@link PlanChunks#FORMAT_CHUNK}, which region packets are told apart from chunks by. */
+    public static final int FORMAT = 3;
+    /** Milliseconds between resyncs of one client. */
+    public static final long cooldown = 1000;
+
+    /** Smallest region size; large maps use bigger regions so the hashes fit in one packet. */
+    static final int REGION_SIZE = 32;
+    static final int MAX_REGIONS = (PlanCodec.MAX_PAYLOAD - 16) / 4;
+    /** Bytes of tiles in one part of a region, leaving room for the packet and part headers. */
+    static final int PART_SIZE = PlanCodec.MAX_PAYLOAD - 16;
+    /** Health is hashed in this many steps, so small differences in damage or repair don't resend a region. */
+    static final int HEALTH_STEPS = 8;
+    private static final int RUN = 0, BUILDING = 1, LINK = 2;
+
+    private final NetBridge net;
+    private final PlanBuffer region = new PlanBuffer();
+    private final PlanBuffer message = new PlanBuffer();
+    private final PlanBuffer chunk = new PlanBuffer();
+    private final PlanBuffer in = new PlanBuffer(0);
+    private final PlanChunks.Reassembly incoming = new PlanChunks.Reassembly();
+    private final IntMap<Long> lastResync = new IntMap<>();
+    private final ReusableByteOutStream buildOut = new ReusableByteOutStream();
+    private final Writes writes = new Writes(new DataOutputStream(buildOut));
+    private final ReusableByteInStream buildIn = new ReusableByteInStream();
+    private final Reads reads = new Reads(new DataInputStream(buildIn));
+
+    /** Server: hashes of the world as it is now, shared by every client resyncing until the world changes. */
+    private int[] hashes = new int[0];
+    private boolean hashed;
+    private long hashedAt;
+    private boolean[] differs = new boolean[0];
+    private int nextTransfer;
+
+    // Statistics since the server started
+    public long resyncs, regionsChecked, regionsSent, bytesSent;
+
+    public WorldSync(NetBridge net) {
+        this.net = net;
+    }
+
+    public void reset() {
+        incoming.cancel();
+        lastResync.clear();
+        invalidate();
+    }
+
+    /** Server: the world changed in a way that could make cached hashes stale. */
+    public void invalidate() {
+        hashed = false;
+    }
+
+    /** Side length in tiles of the regions a world of this size is split into. */
+    public static int regionSize(int width, int height) {
+        int size = REGION_SIZE;
+        while (regions(width, size) * regions(height, size) > MAX_REGIONS) size *= 2;
+        return size;
+    }
+
+    private static int regions(int tiles, int size) {
+        return (tiles + size - 1) / size;
+    }
+
+    /** Client: sends the hashes of our regions so the server can send back the ones that differ. */
+    public void request() {
+        int width = world.width(), height = world.height();
+        if (width == 0 || height == 0) return;
+        int size = regionSize(width, height);
+        int count = regions(width, size) * regions(height, size);
+
+        message.reset();
+        message.writeByte(FORMAT);
+        message.writeVarInt(width);
+        message.writeVarInt(height);
+        message.writeVarInt(size);
+        for (int i = 0; i < count; i++) {
+            message.writeInt(hashRegion(i, size));
+        }
+        net.sendServer("multiplayerpause-worldhashes", message.toBytes());
+    }
+
+    /** Server: a client sent its region hashes, sends it every region that differs. */
+    public void handleHashes(int player, byte[] data) {
+        Long last = lastResync.get(player);
+        if (last != null && net.millis() - last < cooldown / 2) return;
+
+        int width = world.width(), height = world.height();
+        int size = regionSize(width, height);
+        int regionsX = regions(width, size), count = regionsX * regions(height, size);
+        PlanBuffer theirs = in.wrap(data);
+        try {
+            // Hashes of a different map, e.g. one the client is still loading
+            if (theirs.readByte() != FORMAT || theirs.readVarInt() != width || theirs.readVarInt() != height || theirs.readVarInt() != size) return;
+            int[] ours = serverHashes(size, count);
+            if (differs.length < count) differs = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                differs[i] = theirs.readInt() != ours[i];
+            }
+        } catch (IllegalStateException e) {
+            return;
+        }
+        lastResync.put(player, net.millis());
+        resyncs++;
+        regionsChecked += count;
+
+        // A building is sent with the region of its center, which may not be one that differs
+        for (int i = 0; i < count; i++) {
+            if (differs[i]) markCenters(i, size, regionsX);
+        }
+
+        message.reset();
+        message.writeByte(FORMAT);
+        for (int i = 0; i < count; i++) {
+            if (!differs[i]) continue;
+            for (int start = 0; start >= 0; ) {
+                region.reset();
+                int next = writeRegion(i, size, region, start, PART_SIZE);
+                if (message.position > 1 && message.position + region.position + 12 > PlanCodec.MAX_PAYLOAD) {
+                    sendRegions(player);
+                    message.writeByte(FORMAT);
+                }
+                message.writeVarInt(i);
+                message.writeVarInt(start);
+                message.writeVarInt(region.position);
+                message.writeBytes(region.bytes, 0, region.position);
+                start = next;
+            }
+            regionsSent++;
+        }
+        if (message.position > 1) sendRegions(player);
+    }
+
+    /** Sends {@link #message} to the player, in chunks if it is too big for one packet, and resets it. */
+    private void sendRegions(int player) {
+        if (message.position <= PlanCodec.MAX_PAYLOAD) {
+            bytesSent += message.position;
+            net.send(player, "multiplayerpause-worldregions", message.toBytes());
+        } else if (message.position <= PlanChunks.MAX_TRANSFER) {
+            int transfer = ++nextTransfer;
+            for (int i = 0, count = PlanChunks.count(message.position); i < count; i++) {
+                chunk.reset();
+                PlanChunks.writeChunk(chunk, transfer, i, message.bytes, message.position);
+                bytesSent += chunk.position;
+                net.send(player, "multiplayerpause-worldregions", chunk.toBytes());
+            }
+        } else {
+            Log.warn("Building too big to resync (@ bytes)", message.position);
+        }
+        message.reset();
+    }
+
+    private int[] serverHashes(int size, int count) {
+        // Blocks, teams and configs change with an event that invalidates the hashes, health doesn't, so while the
+        // game runs they are only reused within a cooldown. That still covers every client resyncing on unpause.
+        if (hashed && hashes.length == count && (state.isPaused() || net.millis() - hashedAt < cooldown)) return hashes;
+        if (hashes.length != count) hashes = new int[count];
+        for (int i = 0; i < count; i++) {
+            hashes[i] = hashRegion(i, size);
+        }
+        hashed = true;
+        hashedAt = net.millis();
+        return hashes;
+    }
+
+    private void markCenters(int index, int size, int regionsX) {
+        int x0 = index % regionsX * size, y0 = index / regionsX * size;
+        int x1 = Math.min(x0 + size, world.width()), y1 = Math.min(y0 + size, world.height());
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                Building build = world.tile(x, y).build;
+                if (build != null) differs[build.tile.y / size * regionsX + build.tile.x / size] = true;
+            }
+        }
+    }
+
+    /** FNV-1a over the state of the region's tiles that both sides can reproduce, see the class comment. */
+    private int hashRegion(int index, int size) {
+        int regionsX = regions(world.width(), size);
+        int x0 = index % regionsX * size, y0 = index / regionsX * size;
+        int x1 = Math.min(x0 + size, world.width()), y1 = Math.min(y0 + size, world.height());
+        int hash = 0x811c9dc5;
+
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                Tile tile = world.tile(x, y);
+                Building build = tile.build;
+                if (build == null) {
+                    hash = (hash ^ tile.blockID()) * 0x01000193;
+                } else if (build.tile != tile) {
+                    hash = (hash ^ ~build.tile.pos()) * 0x01000193;
+                } else {
+                    hash = (hash ^ build.block.id) * 0x01000193;
+                    hash = (hash ^ build.team.id) * 0x01000193;
+                    hash = (hash ^ build.rotation) * 0x01000193;
+                    hash = (hash ^ (int)(build.healthf() * HEALTH_STEPS)) * 0x01000193;
+                    // Configs are hashed as they go over the network, their hashCode isn't the same on both sides
+                    buildOut.reset();
+                    TypeIO.writeObject(writes, build.config());
+                    byte[] config = buildOut.getBytes();
+                    for (int i = 0, length = buildOut.size(); i < length; i++) {
+                        hash = (hash ^ (config[i] & 0xff)) * 0x01000193;
+                    }
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Writes the tiles of a region from {@code start} on, stopping before the tile that would take the part past
+     * {@code maxBytes}. At least one tile is always written.
+     * @return the tile the next part starts at, or -1 if the region is complete
+     */
+    private int writeRegion(int index, int size, PlanBuffer out, int start, int maxBytes) {
+        int regionsX = regions(world.width(), size);
+        int x0 = index % regionsX * size, y0 = index / regionsX * size;
+        int x1 = Math.min(x0 + size, world.width()), y1 = Math.min(y0 + size, world.height());
+        int width = x1 - x0, tiles = width * (y1 - y0);
+        int runBlock = -1, run = 0;
+
+        for (int i = start; i < tiles; i++) {
+            Tile tile = world.tile(x0 + i % width, y0 + i / width);
+            Building build = tile.build;
+            if (build == null && tile.blockID() == runBlock) {
+                run++;
+                continue;
+            }
+            if (run > 0) {
+                out.writeVarInt(runBlock << 2 | RUN);
+                out.writeVarInt(run);
+            }
+            run = 0;
+            runBlock = -1;
+
+            // A tag and a varint, or a run still to be written at the end, take at most 10 bytes
+            if (build == null) {
+                if (i > start && out.position + 10 > maxBytes) return i;
+                runBlock = tile.blockID();
+                run = 1;
+            } else if (build.tile != tile) {
+                if (i > start && out.position + 10 > maxBytes) return i;
+                out.writeVarInt(LINK);
+                out.writeVarInt(build.tile.pos());
+            } else {
+                buildOut.reset();
+                build.writeAll(writes);
+                if (i > start && out.position + buildOut.size() + 18 > maxBytes) return i;
+                out.writeVarInt(build.block.id << 2 | BUILDING);
+                out.writeByte(build.team.id);
+                out.writeByte(build.rotation);
+                out.writeByte(build.version());
+                out.writeVarInt(buildOut.size());
+                out.writeBytes(buildOut.getBytes(), 0, buildOut.size());
+            }
+        }
+        if (run > 0) {
+            out.writeVarInt(runBlock << 2 | RUN);
+            out.writeVarInt(run);
+        }
+        return -1;
+    }
+
+    /** Client: the server sent regions that differ from ours. */
+    public void handleRegions(byte[] data) {
+        int width = world.width(), height = world.height();
+        if (width == 0 || height == 0) return;
+
+        PlanBuffer regions = in.wrap(data);
+        if (PlanChunks.isChunk(data, 0)) {
+            if (PlanChunks.accept(in, incoming, net.millis()) != PlanChunks.COMPLETE) return;
+            regions = incoming.message();
+        }
+
+        int size = regionSize(width, height);
+        int count = regions(width, size) * regions(height, size);
+        try {
+            if (regions.readByte() != FORMAT) return;
+            while (regions.hasRemaining()) {
+                int index = regions.readVarInt(), start = regions.readVarInt(), length = regions.readVarInt();
+                int end = regions.position + length;
+                if (index >= count || end > regions.limit) return;
+
+                int limit = regions.limit;
+                regions.limit = end;
+                readRegion(index, size, start, regions);
+                regions.position = end;
+                regions.limit = limit;
+            }
+        } catch (IllegalStateException e) {
+            Log.warn("Malformed world region: @", e.getMessage());
+        } finally {
+            incoming.release();
+        }
+    }
+
+    private void readRegion(int index, int size, int start, PlanBuffer data) {
+        int regionsX = regions(world.width(), size);
+        int x0 = index % regionsX * size, y0 = index / regionsX * size;
+        int x1 = Math.min(x0 + size, world.width()), y1 = Math.min(y0 + size, world.height());
+        int width = x1 - x0, tiles = width * (y1 - y0);
+
+        for (int i = start; i < tiles && data.hasRemaining(); ) {
+            int tag = data.readVarInt();
+            int kind = tag & 3;
+            if (kind == LINK) {
+                // Other tiles of a multiblock are set along with its center
+                data.readVarInt();
+                i++;
+            } else if (kind == RUN) {
+                Block block = content.block(tag >>> 2);
+                int run = data.readVarInt();
+                if (block == null) throw new IllegalStateException("Unknown block " + (tag >>> 2));
+                for (int end = Math.min(i + run, tiles); i < end; i++) {
+                    Tile tile = world.tile(x0 + i % width, y0 + i / width);
+                    if (tile.block() != block || tile.build != null) tile.setNet(block, Team.derelict, 0);
+                }
+            } else {
+                Block block = content.block(tag >>> 2);
+                Team team = Team.get(data.readByte());
+                int rotation = data.readByte();
+                byte revision = (byte)data.readByte();
+                int length = data.readVarInt();
+                if (block == null || data.position + length > data.limit) throw new IllegalStateException("Unknown block " + (tag >>> 2));
+
+                Tile tile = world.tile(x0 + i % width, y0 + i / width);
+                if (tile.build == null || tile.block() != block || tile.build.tile != tile || tile.build.team != team) {
+                    tile.setNet(block, team, rotation);
+                }
+                if (tile.build != null) {
+                    buildIn.setBytes(data.bytes, data.position, length);
+                    try {
+                        tile.build.readAll(reads, revision);
+                    } catch (Throwable e) {
+                        Log.err("Failed to read @ at @, @", block.name, tile.x, tile.y);
+                        Log.err(e);
+                    }
+                }
+                data.position += length;
+                i++;
+            }
+        }
+    }
+
+    public String stats() {
+        return Strings.format("@ resyncs, sent @ of @ regions (@ KB, @ KB per resync)", resyncs, regionsSent, regionsChecked,
+            bytesSent / 1024, resyncs == 0 ? 0 : bytesSent / 1024 / resyncs);
+    }
+}